@@ -0,0 +1,76 @@
+package weka.clusterers;
+
+import java.io.Serializable;
+
+import weka.core.Instance;
+
+/**
+ * The cluster feature of a node, as in BIRCH: the number of instances and
+ * the sums of their normalized values and of their squares, per attribute.
+ * The features of two nodes add up to the feature of their union.
+ */
+class ClusterFeature implements Serializable
+{
+	private static final long serialVersionUID = -2286012425385212950L;
+	public int count;
+	public double[] linearSum;
+	public double[] squaredSum;
+	
+	public ClusterFeature(int numAttributes)
+	{
+		linearSum = new double[numAttributes];
+		squaredSum = new double[numAttributes];
+	}
+	
+	/**
+	 * Adds or removes an instance.
+	 * 
+	 * @param inst the instance
+	 * @param kernel the kernel normalizing the values
+	 * @param sign 1 to add the instance, -1 to remove it
+	 */
+	public void add(Instance inst, DistanceKernel kernel, int sign)
+	{
+		for (int i = 0; i < linearSum.length; i++) {
+			double x = kernel.normalize(i, inst.value(i));
+			linearSum[i] += sign * x;
+			squaredSum[i] += sign * x * x;
+		}
+		count += sign;
+	}
+	
+	public void add(ClusterFeature feature)
+	{
+		for (int i = 0; i < linearSum.length; i++) {
+			linearSum[i] += feature.linearSum[i];
+			squaredSum[i] += feature.squaredSum[i];
+		}
+		count += feature.count;
+	}
+	
+	/**
+	 * Sum of the squared euclidean distances from the instances to a center.
+	 */
+	public double squaredError(Instance center, DistanceKernel kernel)
+	{
+		double error = 0;
+		for (int i = 0; i < linearSum.length; i++) {
+			double c = kernel.normalize(i, center.value(i));
+			error += squaredSum[i] - 2 * c * linearSum[i] + count * c * c;
+		}
+		return Math.max(0, error);
+	}
+	
+	/**
+	 * Sum of the squared euclidean distances from the instances to their mean.
+	 */
+	public double scatter()
+	{
+		if (count == 0)
+			return 0;
+		double scatter = 0;
+		for (int i = 0; i < linearSum.length; i++)
+			scatter += squaredSum[i] - linearSum[i] * linearSum[i] / count;
+		return Math.max(0, scatter);
+	}
+}
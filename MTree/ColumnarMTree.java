@@ -0,0 +1,526 @@
+package weka.clusterers;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import weka.core.DistanceFunction;
+import weka.core.Instance;
+import weka.core.Instances;
+
+class ColumnarNode implements Serializable {
+
+	/**
+	 * A node of the columnar M-tree. Internal nodes keep the coordinates of
+	 * their routing objects in one contiguous block, leaves keep the row ids
+	 * of their points in the shared PointStore.
+	 */
+	private static final long serialVersionUID = -2154896075323469150L;
+	public int nrKeys = 0;
+	public boolean isLeaf = true;
+	public double[] keys;
+	public double[] radix;
+	public ColumnarNode[] routes;
+	public int[] rows;
+
+	public ColumnarNode(int size, int numAttributes, boolean leaf)
+	{
+		isLeaf = leaf;
+		if (leaf) {
+			rows = new int[size];
+		} else {
+			keys = new double[size * numAttributes];
+			radix = new double[size];
+			routes = new ColumnarNode[size];
+		}
+	}
+}
+
+/**
+ * M-tree stored in primitive arrays. The points are rows of a shared
+ * PointStore and the nodes hold arrays instead of lists of boxed values and
+ * Instance objects, which keeps the heap small and the routing objects of a
+ * node next to each other in memory during the descent.
+ * <p/>
+ * Nodes hold at most m_Capacity entries. An overflowing node is split by
+ * promoting its two farthest entries and partitioning the others by their
+ * closest promoted entry, as in the original M-tree.
+ */
+public class ColumnarMTree implements Serializable {
+
+	private static final long serialVersionUID = 4380215367701219428L;
+
+	/** the points stored in the tree */
+	protected PointStore m_Store;
+
+	/** the root node */
+	protected ColumnarNode m_Root;
+
+	/** maximum number of entries in a node */
+	protected int m_Capacity;
+
+	/** number of values of each point */
+	protected int m_NumAttributes;
+
+	/** the distance between normalized points */
+	protected DistanceKernel m_Kernel;
+
+	/**
+	 * Creates an empty tree using the Euclidean distance.
+	 *
+	 * @param store the store holding the points of the tree
+	 * @param capacity maximum number of entries in a node
+	 */
+	public ColumnarMTree(PointStore store, int capacity) {
+		this(store, DistanceKernel.forRows(DistanceKernel.EUCLIDEAN, store.numAttributes(), 2), capacity);
+	}
+
+	/**
+	 * Creates an empty tree.
+	 *
+	 * @param store the store holding the points of the tree
+	 * @param kernel the distance between normalized points
+	 * @param capacity maximum number of entries in a node
+	 */
+	public ColumnarMTree(PointStore store, DistanceKernel kernel, int capacity) {
+		if (capacity < 2)
+			throw new IllegalArgumentException("Node capacity must be >= 2");
+
+		m_Store = store;
+		m_Kernel = kernel;
+		m_Capacity = capacity;
+		m_NumAttributes = store.numAttributes();
+		m_Root = new ColumnarNode(capacity + 1, m_NumAttributes, true);
+	}
+
+	/**
+	 * Copies a built MTree into the columnar layout, keeping its nodes,
+	 * routing objects and covering radii.
+	 *
+	 * @param tree the tree to copy
+	 * @param header the structure of the instances in the tree
+	 * @param distanceFunction the distance the tree was built with
+	 * @param capacity maximum number of entries of a node for later insertions
+	 * @return the columnar tree
+	 * @throws IllegalArgumentException if there is no DistanceKernel for the distance
+	 */
+	public static ColumnarMTree fromMTree(MTreeBean tree, Instances header,
+			DistanceFunction distanceFunction, int capacity) {
+
+		DistanceKernel kernel = DistanceKernel.forDistance(distanceFunction, header);
+		if (kernel == null)
+			throw new IllegalArgumentException("The columnar layout does not support the distance "
+					+ distanceFunction.getClass().getName());
+
+		double order = kernel instanceof DistanceKernel.Minkowski ? ((DistanceKernel.Minkowski) kernel).order() : 2;
+		PointStore store = PointStore.forDistance(header, distanceFunction, header.numInstances());
+		ColumnarMTree columnar = new ColumnarMTree(store,
+				DistanceKernel.forRows(kernel.type(), header.numAttributes(), order), capacity);
+		columnar.m_Root = columnar.copyNode(tree.root, new IdentityHashMap<Instance, Integer>());
+		return columnar;
+	}
+
+	private ColumnarNode copyNode(Node node, IdentityHashMap<Instance, Integer> rowIds) {
+
+		ColumnarNode copy = new ColumnarNode(Math.max(node.nrKeys, m_Capacity) + 1, m_NumAttributes, node.isLeaf);
+		copy.nrKeys = node.nrKeys;
+
+		for (int i = 0; i < node.nrKeys; i++) {
+			Instance inst = node.instances.get(i);
+			if (node.isLeaf) {
+				Integer row = rowIds.get(inst);
+				if (row == null) {
+					row = m_Store.add(inst);
+					rowIds.put(inst, row);
+				}
+				copy.rows[i] = row;
+			} else {
+				m_Store.normalize(inst, copy.keys, i * m_NumAttributes);
+				copy.radix[i] = node.radix.get(i);
+				copy.routes[i] = copyNode(node.routes.get(i), rowIds);
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Distance between two normalized points.
+	 */
+	protected double distance(double[] a, int aOffset, double[] b, int bOffset) {
+		return m_Kernel.distance(a, aOffset, b, bOffset);
+	}
+
+	/**
+	 * Distance between a normalized point and a stored row.
+	 */
+	private double rowDistance(double[] q, int qOffset, int row) {
+		return m_Kernel.distance(q, qOffset, m_Store.values(), m_Store.offset(row));
+	}
+
+	/**
+	 * Distance between a normalized point and a stored row, or
+	 * Double.POSITIVE_INFINITY if it is larger than the cutoff.
+	 */
+	private double rowDistance(double[] q, int qOffset, int row, double cutoff) {
+		return m_Kernel.distance(q, qOffset, m_Store.values(), m_Store.offset(row), cutoff);
+	}
+
+	/**
+	 * Inserts an instance in the tree.
+	 *
+	 * @param inst the instance
+	 * @return the row id of the instance
+	 */
+	public int insert(Instance inst) {
+		int row = m_Store.add(inst);
+		insertRow(row);
+		return row;
+	}
+
+	/**
+	 * Inserts a point of the store in the tree.
+	 *
+	 * @param row the row id of the point
+	 */
+	public void insertRow(int row) {
+
+		double[] values = m_Store.values();
+		int offset = m_Store.offset(row);
+
+		ArrayList<ColumnarNode> path = new ArrayList<ColumnarNode>();
+		ArrayList<Integer> pathIndex = new ArrayList<Integer>();
+		ColumnarNode node = m_Root;
+
+		while (!node.isLeaf) {
+			//prefer a routing object whose ball already holds the point,
+			//otherwise the one needing the smallest radius enlargement
+			int idx = 0;
+			double best = Double.MAX_VALUE;
+			double bestDistance = 0;
+			boolean covered = false;
+
+			double[] distances = new double[node.nrKeys];
+			m_Kernel.distances(values, offset, node.keys, 0, node.nrKeys, distances);
+			for (int i = 0; i < node.nrKeys; i++) {
+				double d = distances[i];
+				if (d <= node.radix[i]) {
+					if (!covered || d < best) {
+						covered = true;
+						best = d;
+						idx = i;
+						bestDistance = d;
+					}
+				} else if (!covered && d - node.radix[i] < best) {
+					best = d - node.radix[i];
+					idx = i;
+					bestDistance = d;
+				}
+			}
+
+			if (bestDistance > node.radix[idx])
+				node.radix[idx] = bestDistance;
+
+			path.add(node);
+			pathIndex.add(idx);
+			node = node.routes[idx];
+		}
+
+		node.rows[node.nrKeys++] = row;
+
+		//split the overflowing nodes bottom up
+		int level = path.size() - 1;
+		while (node.nrKeys > m_Capacity) {
+			ColumnarNode parent = level >= 0 ? path.get(level) : null;
+			int parentIndex = level >= 0 ? pathIndex.get(level) : -1;
+			splitNode(node, parent, parentIndex);
+			node = parent;
+			level--;
+			if (node == null)
+				break;
+		}
+	}
+
+	/**
+	 * Copies the coordinates of an entry of a node.
+	 */
+	private void entryCoordinates(ColumnarNode node, int i, double[] dest) {
+		if (node.isLeaf)
+			System.arraycopy(m_Store.values(), m_Store.offset(node.rows[i]), dest, 0, m_NumAttributes);
+		else
+			System.arraycopy(node.keys, i * m_NumAttributes, dest, 0, m_NumAttributes);
+	}
+
+	private double entryDistance(ColumnarNode node, int i, double[] q) {
+		if (node.isLeaf)
+			return rowDistance(q, 0, node.rows[i]);
+		return distance(q, 0, node.keys, i * m_NumAttributes);
+	}
+
+	/**
+	 * Splits a node in two, replacing its entry in the parent.
+	 *
+	 * @param node the overflowing node
+	 * @param parent the parent of the node, null for the root
+	 * @param parentIndex the index of the node in its parent
+	 */
+	protected void splitNode(ColumnarNode node, ColumnarNode parent, int parentIndex) {
+
+		int n = node.nrKeys;
+		double[] first = new double[m_NumAttributes];
+		double[] second = new double[m_NumAttributes];
+
+		//promote the farthest entry from the first one and the farthest from that
+		entryCoordinates(node, 0, first);
+		int p1 = farthestEntry(node, first);
+		entryCoordinates(node, p1, first);
+		int p2 = farthestEntry(node, first);
+		entryCoordinates(node, p2, second);
+
+		//nodes copied from an MTree can hold more entries than the capacity
+		int size = Math.max(m_Capacity, n) + 1;
+		ColumnarNode left = new ColumnarNode(size, m_NumAttributes, node.isLeaf);
+		ColumnarNode right = new ColumnarNode(size, m_NumAttributes, node.isLeaf);
+		double leftRadix = 0, rightRadix = 0;
+
+		for (int i = 0; i < n; i++) {
+			double d1 = entryDistance(node, i, first);
+			double d2 = entryDistance(node, i, second);
+			double entryRadix = node.isLeaf ? 0 : node.radix[i];
+
+			//keep both sides non empty when all the entries coincide
+			boolean toLeft = d1 < d2 || (d1 == d2 && left.nrKeys <= right.nrKeys);
+			ColumnarNode target = toLeft ? left : right;
+			if (toLeft)
+				leftRadix = Math.max(leftRadix, d1 + entryRadix);
+			else
+				rightRadix = Math.max(rightRadix, d2 + entryRadix);
+
+			int j = target.nrKeys++;
+			if (node.isLeaf) {
+				target.rows[j] = node.rows[i];
+			} else {
+				System.arraycopy(node.keys, i * m_NumAttributes, target.keys, j * m_NumAttributes, m_NumAttributes);
+				target.radix[j] = node.radix[i];
+				target.routes[j] = node.routes[i];
+			}
+		}
+
+		if (parent == null) {
+			ColumnarNode root = new ColumnarNode(m_Capacity + 1, m_NumAttributes, false);
+			setEntry(root, 0, first, leftRadix, left);
+			setEntry(root, 1, second, rightRadix, right);
+			root.nrKeys = 2;
+			m_Root = root;
+		} else {
+			if (parent.nrKeys + 1 > parent.routes.length)
+				growNode(parent);
+			setEntry(parent, parentIndex, first, leftRadix, left);
+			setEntry(parent, parent.nrKeys, second, rightRadix, right);
+			parent.nrKeys++;
+		}
+	}
+
+	private int farthestEntry(ColumnarNode node, double[] q) {
+		int farthest = 0;
+		double max = -1;
+		for (int i = 0; i < node.nrKeys; i++) {
+			double d = entryDistance(node, i, q);
+			if (d > max) {
+				max = d;
+				farthest = i;
+			}
+		}
+		return farthest;
+	}
+
+	private void setEntry(ColumnarNode node, int i, double[] key, double radix, ColumnarNode child) {
+		System.arraycopy(key, 0, node.keys, i * m_NumAttributes, m_NumAttributes);
+		node.radix[i] = radix;
+		node.routes[i] = child;
+	}
+
+	/**
+	 * Makes room for one more entry in a node copied with a larger
+	 * number of entries than the capacity.
+	 */
+	private void growNode(ColumnarNode node) {
+		int size = node.routes.length + 1;
+		double[] keys = new double[size * m_NumAttributes];
+		System.arraycopy(node.keys, 0, keys, 0, node.keys.length);
+		double[] radix = new double[size];
+		System.arraycopy(node.radix, 0, radix, 0, node.radix.length);
+		ColumnarNode[] routes = new ColumnarNode[size];
+		System.arraycopy(node.routes, 0, routes, 0, node.routes.length);
+		node.keys = keys;
+		node.radix = radix;
+		node.routes = routes;
+	}
+
+	/**
+	 * Finds all the points within a given distance from a query.
+	 *
+	 * @param query the query instance
+	 * @param r the query radius
+	 * @return the row ids of the points
+	 */
+	public int[] rangeQuery(Instance query, double r) {
+		double[] q = m_Store.normalize(query);
+		IntList result = new IntList();
+		rangeQuery(m_Root, q, r, result);
+		return result.toArray();
+	}
+
+	private void rangeQuery(ColumnarNode node, double[] q, double r, IntList result) {
+		if (node.isLeaf) {
+			for (int i = 0; i < node.nrKeys; i++)
+				if (rowDistance(q, 0, node.rows[i], r) <= r)
+					result.add(node.rows[i]);
+		} else {
+			double[] distances = new double[node.nrKeys];
+			m_Kernel.distances(q, 0, node.keys, 0, node.nrKeys, distances);
+			for (int i = 0; i < node.nrKeys; i++)
+				if (distances[i] <= r + node.radix[i])
+					rangeQuery(node.routes[i], q, r, result);
+		}
+	}
+
+	/**
+	 * Finds the k closest points to a query.
+	 *
+	 * @param query the query instance
+	 * @param k the number of neighbors
+	 * @return the row ids of the neighbors, closest first
+	 */
+	public int[] kNN(Instance query, int k) {
+		if (k <= 0)
+			return new int[0];
+		double[] q = m_Store.normalize(query);
+
+		//results as a max heap on the distance, so the k-th distance is on top
+		double[] resultDistances = new double[k];
+		int[] resultRows = new int[k];
+		int[] size = new int[1];
+		kNN(m_Root, q, k, resultDistances, resultRows, size);
+
+		//sort the heap
+		for (int end = size[0] - 1; end > 0; end--) {
+			swap(resultDistances, resultRows, 0, end);
+			siftDown(resultDistances, resultRows, 0, end);
+		}
+		int[] rows = new int[size[0]];
+		System.arraycopy(resultRows, 0, rows, 0, size[0]);
+		return rows;
+	}
+
+	private void kNN(ColumnarNode node, double[] q, int k, double[] heapDistances, int[] heapRows, int[] size) {
+		if (node.isLeaf) {
+			for (int i = 0; i < node.nrKeys; i++) {
+				double d = rowDistance(q, 0, node.rows[i],
+						size[0] < k ? Double.POSITIVE_INFINITY : heapDistances[0]);
+				if (size[0] < k) {
+					heapDistances[size[0]] = d;
+					heapRows[size[0]] = node.rows[i];
+					siftUp(heapDistances, heapRows, size[0]++);
+				} else if (d < heapDistances[0]) {
+					heapDistances[0] = d;
+					heapRows[0] = node.rows[i];
+					siftDown(heapDistances, heapRows, 0, k);
+				}
+			}
+			return;
+		}
+
+		//visit the children closest first
+		double[] dmin = new double[node.nrKeys];
+		int[] order = new int[node.nrKeys];
+		m_Kernel.distances(q, 0, node.keys, 0, node.nrKeys, dmin);
+		for (int i = 0; i < node.nrKeys; i++) {
+			dmin[i] = Math.max(dmin[i] - node.radix[i], 0);
+			order[i] = i;
+		}
+		for (int i = 1; i < order.length; i++) {
+			int j = i;
+			while (j > 0 && dmin[order[j - 1]] > dmin[order[j]]) {
+				int tmp = order[j];
+				order[j] = order[j - 1];
+				order[j - 1] = tmp;
+				j--;
+			}
+		}
+		for (int i = 0; i < order.length; i++) {
+			if (size[0] == k && dmin[order[i]] > heapDistances[0])
+				break;
+			kNN(node.routes[order[i]], q, k, heapDistances, heapRows, size);
+		}
+	}
+
+	private static void siftUp(double[] heap, int[] rows, int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (heap[parent] >= heap[i])
+				break;
+			swap(heap, rows, parent, i);
+			i = parent;
+		}
+	}
+
+	private static void siftDown(double[] heap, int[] rows, int i, int size) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && heap[child + 1] > heap[child])
+				child++;
+			if (heap[i] >= heap[child])
+				break;
+			swap(heap, rows, i, child);
+			i = child;
+		}
+	}
+
+	private static void swap(double[] heap, int[] rows, int i, int j) {
+		double d = heap[i];
+		heap[i] = heap[j];
+		heap[j] = d;
+		int r = rows[i];
+		rows[i] = rows[j];
+		rows[j] = r;
+	}
+
+	/**
+	 * @return the store holding the points of the tree
+	 */
+	public PointStore getStore() {
+		return m_Store;
+	}
+
+	/**
+	 * @return the root node
+	 */
+	ColumnarNode getRoot() {
+		return m_Root;
+	}
+
+	/**
+	 * Growable array of ints used to collect query results.
+	 */
+	static class IntList {
+		int[] m_Values = new int[16];
+		int m_Size = 0;
+
+		void add(int value) {
+			if (m_Size == m_Values.length) {
+				int[] values = new int[2 * m_Size];
+				System.arraycopy(m_Values, 0, values, 0, m_Size);
+				m_Values = values;
+			}
+			m_Values[m_Size++] = value;
+		}
+
+		int[] toArray() {
+			int[] result = new int[m_Size];
+			System.arraycopy(m_Values, 0, result, 0, m_Size);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,541 @@
+package weka.clusterers;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+
+import weka.core.Attribute;
+import weka.core.ChebyshevDistance;
+import weka.core.DistanceFunction;
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.ManhattanDistance;
+import weka.core.MinkowskiDistance;
+import weka.core.NormalizableDistance;
+
+/**
+ * Dense distance computations over all numeric attributes, without the
+ * per-attribute dispatch of the weka distance functions. A kernel computes
+ * the same values as the distance it was created from, either on instances
+ * (normalizing on the fly) or on rows that are already normalized, as kept
+ * by a PointStore.
+ *
+ * The variants taking a cutoff stop as soon as the partial distance is
+ * larger than the cutoff and return Double.POSITIVE_INFINITY. Unlike the
+ * weka distances, the cutoff and the result are always true distances (not
+ * squared for the euclidean distance). A distance equal to the cutoff is
+ * never abandoned, so the kernels that compare powers of the cutoff leave
+ * a small margin for rounding and may return distances slightly larger
+ * than the cutoff.
+ *
+ * Missing values are not handled, the result is NaN when one of the values
+ * is missing.
+ */
+public abstract class DistanceKernel implements Serializable {
+
+	private static final long serialVersionUID = -3057794818226716459L;
+
+	/** kernel types, the same values as MTree.DISTANCE_SELECTION */
+	public static final int EUCLIDEAN = MTree.EuclideanDistance;
+	public static final int CHEBYSHEV = MTree.ChebyshevDistance;
+	public static final int MANHATTAN = MTree.ManhattanDistance;
+	public static final int MINKOWSKI = MTree.MinkowskiDistance;
+	public static final int SQUARED_EUCLIDEAN = 5;
+
+	/** margin on the powers of the cutoff, so rounding never abandons a distance equal to it */
+	protected static final double CUTOFF_SLACK = 1 + 1e-12;
+
+	/** minimum of each attribute, used to normalize instances */
+	protected double[] m_Min;
+
+	/** width of each attribute, null if instances are not normalized */
+	protected double[] m_Width;
+
+	/** number of values of each point */
+	protected int m_NumAttributes;
+
+	protected DistanceKernel(int numAttributes, double[] min, double[] width) {
+		m_NumAttributes = numAttributes;
+		m_Min = min;
+		m_Width = width;
+	}
+
+	/**
+	 * Difference between two values of an attribute, normalized exactly like
+	 * NormalizableDistance does so both give the same distances.
+	 */
+	protected final double difference(int i, double x, double y) {
+		if (m_Width == null)
+			return x - y;
+		if (m_Width[i] == 0)
+			return 0;
+		return (x - m_Min[i]) / m_Width[i] - (y - m_Min[i]) / m_Width[i];
+	}
+
+	/**
+	 * Normalizes a value of an attribute the way difference() does.
+	 *
+	 * @param i the attribute index
+	 * @param value the value
+	 * @return the normalized value
+	 */
+	public final double normalize(int i, double value) {
+		if (m_Width == null)
+			return value;
+		if (m_Width[i] == 0)
+			return 0;
+		return (value - m_Min[i]) / m_Width[i];
+	}
+
+	/**
+	 * Gets the value of an attribute back from a normalized value. Constant
+	 * attributes get their only value.
+	 *
+	 * @param i the attribute index
+	 * @param value the normalized value
+	 * @return the value
+	 */
+	public final double denormalize(int i, double value) {
+		if (m_Width == null)
+			return value;
+		return m_Min[i] + value * m_Width[i];
+	}
+
+	/**
+	 * @return the number of values of each row
+	 */
+	public int numAttributes() {
+		return m_NumAttributes;
+	}
+
+	/**
+	 * @return the type of the kernel
+	 */
+	public abstract int type();
+
+	/**
+	 * @return true if the distance satisfies the triangle inequality
+	 */
+	public boolean isMetric() {
+		return type() != SQUARED_EUCLIDEAN;
+	}
+
+	/**
+	 * Computes the distance between two normalized rows.
+	 *
+	 * @param a the array holding the first row
+	 * @param aOffset the offset of the first row in a
+	 * @param b the array holding the second row
+	 * @param bOffset the offset of the second row in b
+	 * @return the distance
+	 */
+	public double distance(double[] a, int aOffset, double[] b, int bOffset) {
+		return distance(a, aOffset, b, bOffset, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Computes the distance between two normalized rows, giving up once it
+	 * is larger than the cutoff.
+	 *
+	 * @param a the array holding the first row
+	 * @param aOffset the offset of the first row in a
+	 * @param b the array holding the second row
+	 * @param bOffset the offset of the second row in b
+	 * @param cutoff the largest distance of interest
+	 * @return the distance, or Double.POSITIVE_INFINITY if it is larger than
+	 *         the cutoff
+	 */
+	public abstract double distance(double[] a, int aOffset, double[] b, int bOffset, double cutoff);
+
+	/**
+	 * Computes the distances between a normalized row and consecutive rows
+	 * of a block, for instance all the routing objects of a node.
+	 *
+	 * @param q the array holding the row
+	 * @param qOffset the offset of the row in q
+	 * @param block the array holding the rows of the block
+	 * @param blockOffset the offset of the first row of the block
+	 * @param count the number of rows of the block
+	 * @param dest where the distance to the i-th row of the block is written
+	 */
+	public void distances(double[] q, int qOffset, double[] block, int blockOffset, int count, double[] dest) {
+		for (int i = 0; i < count; i++)
+			dest[i] = distance(q, qOffset, block, blockOffset + i * m_NumAttributes, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Computes the distance between two instances.
+	 *
+	 * @param a the first instance
+	 * @param b the second instance
+	 * @return the distance
+	 */
+	public double distance(Instance a, Instance b) {
+		return distance(a, b, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Computes the distance between two instances, giving up once it is
+	 * larger than the cutoff.
+	 *
+	 * @param a the first instance
+	 * @param b the second instance
+	 * @param cutoff the largest distance of interest
+	 * @return the distance, or Double.POSITIVE_INFINITY if it is larger than
+	 *         the cutoff
+	 */
+	public abstract double distance(Instance a, Instance b, double cutoff);
+
+	/**
+	 * Gets a kernel computing the square of this distance without taking a
+	 * root, for comparisons that only need the order of the distances.
+	 *
+	 * @return the kernel, or null if squaring the distance is as cheap
+	 */
+	public DistanceKernel squared() {
+		return null;
+	}
+
+	/**
+	 * Gets a kernel computing this distance on rows that are already
+	 * normalized.
+	 *
+	 * @return the kernel
+	 */
+	public DistanceKernel rows() {
+		return forRows(type(), m_NumAttributes, 2);
+	}
+
+	/**
+	 * Gets the kernel computing the same distance as a weka distance
+	 * function. Only the plain euclidean, chebyshev, manhattan and minkowski
+	 * distances over all attributes of a numeric dataset without class are
+	 * supported. The ranges of the distance must be up to date.
+	 *
+	 * @param distanceFunction the distance
+	 * @param header the structure of the data
+	 * @return the kernel, or null if the distance is not supported
+	 */
+	public static DistanceKernel forDistance(DistanceFunction distanceFunction, Instances header) {
+		if (!(distanceFunction instanceof NormalizableDistance) || header.classIndex() >= 0)
+			return null;
+
+		NormalizableDistance distance = (NormalizableDistance) distanceFunction;
+		if (distance.getInvertSelection() || !"first-last".equals(distance.getAttributeIndices()))
+			return null;
+
+		for (int i = 0; i < header.numAttributes(); i++) {
+			if (header.attribute(i).type() != Attribute.NUMERIC)
+				return null;
+		}
+
+		int n = header.numAttributes();
+		double[] min = null;
+		double[] width = null;
+		if (!distance.getDontNormalize()) {
+			double[][] ranges;
+			try {
+				ranges = distance.getRanges();
+			} catch (Exception e) {
+				return null;
+			}
+			if (ranges == null || ranges.length != n)
+				return null;
+			min = new double[n];
+			width = new double[n];
+			for (int i = 0; i < n; i++) {
+				min[i] = ranges[i][NormalizableDistance.R_MIN];
+				width[i] = ranges[i][NormalizableDistance.R_WIDTH];
+			}
+		}
+
+		Class<?> type = distanceFunction.getClass();
+		if (type == EuclideanDistance.class)
+			return new Euclidean(n, min, width);
+		if (type == ChebyshevDistance.class)
+			return new Chebyshev(n, min, width);
+		if (type == ManhattanDistance.class)
+			return new Manhattan(n, min, width);
+		if (type == MinkowskiDistance.class)
+			return new Minkowski(n, min, width, ((MinkowskiDistance) distanceFunction).getOrder());
+		return null;
+	}
+
+	/**
+	 * Gets a kernel working on rows that are already normalized. The
+	 * vectorized kernels of VectorDistanceKernel are used when MTree/vector
+	 * was compiled, the jdk.incubator.vector module is available (java
+	 * --add-modules jdk.incubator.vector) and they support the type.
+	 *
+	 * @param type the kernel type
+	 * @param numAttributes the number of values of each row
+	 * @param order the order of the minkowski distance, ignored otherwise
+	 * @return the kernel
+	 */
+	public static DistanceKernel forRows(int type, int numAttributes, double order) {
+		DistanceKernel kernel = vectorized(type, numAttributes);
+		return kernel != null ? kernel : scalarRows(type, numAttributes, order);
+	}
+
+	/** the factory method of VectorDistanceKernel, null if the module is missing */
+	private static Method s_VectorFactory;
+	private static boolean s_VectorLookupDone = false;
+
+	/**
+	 * Gets a vectorized kernel. VectorDistanceKernel is only looked up by
+	 * name, so this class compiles and works without it.
+	 */
+	private static synchronized DistanceKernel vectorized(int type, int numAttributes) {
+		if (!s_VectorLookupDone) {
+			s_VectorLookupDone = true;
+			//missing when MTree/vector was not compiled, fails to link without the module
+			try {
+				s_VectorFactory = Class.forName("weka.clusterers.VectorDistanceKernel")
+						.getMethod("forRows", int.class, int.class);
+			} catch (Throwable e) {
+				s_VectorFactory = null;
+			}
+		}
+		if (s_VectorFactory == null)
+			return null;
+		try {
+			return (DistanceKernel) s_VectorFactory.invoke(null, type, numAttributes);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Gets a scalar kernel working on rows that are already normalized.
+	 *
+	 * @param type the kernel type
+	 * @param numAttributes the number of values of each row
+	 * @param order the order of the minkowski distance, ignored otherwise
+	 * @return the kernel
+	 */
+	public static DistanceKernel scalarRows(int type, int numAttributes, double order) {
+		switch (type) {
+		case EUCLIDEAN:
+			return new Euclidean(numAttributes, null, null);
+		case SQUARED_EUCLIDEAN:
+			return new SquaredEuclidean(numAttributes, null, null);
+		case CHEBYSHEV:
+			return new Chebyshev(numAttributes, null, null);
+		case MANHATTAN:
+			return new Manhattan(numAttributes, null, null);
+		case MINKOWSKI:
+			return new Minkowski(numAttributes, null, null, order);
+		default:
+			throw new IllegalArgumentException("Unknown kernel type: " + type);
+		}
+	}
+
+	/**
+	 * Row kernels are written as scalar kernels (see VectorDistanceKernel)
+	 * and get vectorized again when they are read, if the JVM allows it.
+	 */
+	protected Object readResolve() {
+		if (m_Width != null || m_Min != null)
+			return this;
+		DistanceKernel kernel = vectorized(type(), m_NumAttributes);
+		return kernel != null ? kernel : this;
+	}
+
+	/**
+	 * The squared euclidean distance, for comparisons where only the order
+	 * of the distances matters.
+	 */
+	public static class SquaredEuclidean extends DistanceKernel {
+
+		private static final long serialVersionUID = 2779237316530906140L;
+
+		public SquaredEuclidean(int numAttributes, double[] min, double[] width) {
+			super(numAttributes, min, width);
+		}
+
+		public int type() {
+			return SQUARED_EUCLIDEAN;
+		}
+
+		public double distance(double[] a, int aOffset, double[] b, int bOffset, double cutoff) {
+			double sum = 0;
+			for (int i = 0; i < m_NumAttributes; i++) {
+				double diff = a[aOffset + i] - b[bOffset + i];
+				sum += diff * diff;
+				if (sum > cutoff)
+					return Double.POSITIVE_INFINITY;
+			}
+			return sum;
+		}
+
+		public double distance(Instance a, Instance b, double cutoff) {
+			double sum = 0;
+			for (int i = 0; i < m_NumAttributes; i++) {
+				double diff = difference(i, a.value(i), b.value(i));
+				sum += diff * diff;
+				if (sum > cutoff)
+					return Double.POSITIVE_INFINITY;
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * The euclidean distance. The cutoff is compared with the squared sum so
+	 * the square root is only taken once.
+	 */
+	public static class Euclidean extends SquaredEuclidean {
+
+		private static final long serialVersionUID = -6392452361209541012L;
+
+		public Euclidean(int numAttributes, double[] min, double[] width) {
+			super(numAttributes, min, width);
+		}
+
+		public int type() {
+			return EUCLIDEAN;
+		}
+
+		public DistanceKernel squared() {
+			return new SquaredEuclidean(m_NumAttributes, m_Min, m_Width);
+		}
+
+		public double distance(double[] a, int aOffset, double[] b, int bOffset, double cutoff) {
+			return Math.sqrt(super.distance(a, aOffset, b, bOffset, cutoff * cutoff * CUTOFF_SLACK));
+		}
+
+		public double distance(Instance a, Instance b, double cutoff) {
+			return Math.sqrt(super.distance(a, b, cutoff * cutoff * CUTOFF_SLACK));
+		}
+	}
+
+	/**
+	 * The manhattan distance.
+	 */
+	public static class Manhattan extends DistanceKernel {
+
+		private static final long serialVersionUID = 4861063587402930518L;
+
+		public Manhattan(int numAttributes, double[] min, double[] width) {
+			super(numAttributes, min, width);
+		}
+
+		public int type() {
+			return MANHATTAN;
+		}
+
+		public double distance(double[] a, int aOffset, double[] b, int bOffset, double cutoff) {
+			double sum = 0;
+			for (int i = 0; i < m_NumAttributes; i++) {
+				sum += Math.abs(a[aOffset + i] - b[bOffset + i]);
+				if (sum > cutoff)
+					return Double.POSITIVE_INFINITY;
+			}
+			return sum;
+		}
+
+		public double distance(Instance a, Instance b, double cutoff) {
+			double sum = 0;
+			for (int i = 0; i < m_NumAttributes; i++) {
+				sum += Math.abs(difference(i, a.value(i), b.value(i)));
+				if (sum > cutoff)
+					return Double.POSITIVE_INFINITY;
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * The chebyshev distance.
+	 */
+	public static class Chebyshev extends DistanceKernel {
+
+		private static final long serialVersionUID = -1720939484917530263L;
+
+		public Chebyshev(int numAttributes, double[] min, double[] width) {
+			super(numAttributes, min, width);
+		}
+
+		public int type() {
+			return CHEBYSHEV;
+		}
+
+		public double distance(double[] a, int aOffset, double[] b, int bOffset, double cutoff) {
+			double max = 0;
+			for (int i = 0; i < m_NumAttributes; i++) {
+				max = Math.max(max, Math.abs(a[aOffset + i] - b[bOffset + i]));
+				if (max > cutoff)
+					return Double.POSITIVE_INFINITY;
+			}
+			return max;
+		}
+
+		public double distance(Instance a, Instance b, double cutoff) {
+			double max = 0;
+			for (int i = 0; i < m_NumAttributes; i++) {
+				max = Math.max(max, Math.abs(difference(i, a.value(i), b.value(i))));
+				if (max > cutoff)
+					return Double.POSITIVE_INFINITY;
+			}
+			return max;
+		}
+	}
+
+	/**
+	 * The minkowski distance of a given order. The cutoff is compared with
+	 * the sum of the powers, the root is only taken once.
+	 */
+	public static class Minkowski extends DistanceKernel {
+
+		private static final long serialVersionUID = 8016524410318046455L;
+
+		/** the order of the distance */
+		protected double m_Order;
+
+		public Minkowski(int numAttributes, double[] min, double[] width, double order) {
+			super(numAttributes, min, width);
+			m_Order = order;
+		}
+
+		public int type() {
+			return MINKOWSKI;
+		}
+
+		/**
+		 * @return the order of the distance
+		 */
+		public double order() {
+			return m_Order;
+		}
+
+		public boolean isMetric() {
+			return m_Order >= 1;
+		}
+
+		public DistanceKernel rows() {
+			return forRows(MINKOWSKI, m_NumAttributes, m_Order);
+		}
+
+		public double distance(double[] a, int aOffset, double[] b, int bOffset, double cutoff) {
+			double limit = Math.pow(cutoff, m_Order) * CUTOFF_SLACK;
+			double sum = 0;
+			for (int i = 0; i < m_NumAttributes; i++) {
+				sum += Math.pow(Math.abs(a[aOffset + i] - b[bOffset + i]), m_Order);
+				if (sum > limit)
+					return Double.POSITIVE_INFINITY;
+			}
+			return Math.pow(sum, 1 / m_Order);
+		}
+
+		public double distance(Instance a, Instance b, double cutoff) {
+			double limit = Math.pow(cutoff, m_Order) * CUTOFF_SLACK;
+			double sum = 0;
+			for (int i = 0; i < m_NumAttributes; i++) {
+				sum += Math.pow(Math.abs(difference(i, a.value(i), b.value(i))), m_Order);
+				if (sum > limit)
+					return Double.POSITIVE_INFINITY;
+			}
+			return Math.pow(sum, 1 / m_Order);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package weka.clusterers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A read-only Instances over a list of instances, for instance the entries
+ * of a node or a range of rows of the training data. The instances are not
+ * copied: an ArrayList is used as it is, any other list only has its
+ * references copied. The instances keep their own dataset.
+ *
+ * The methods changing the rows or the attributes throw an
+ * UnsupportedOperationException. The values of the instances are shared
+ * with the list, they must not be changed through the view.
+ */
+public class InstancesView extends Instances {
+
+	private static final long serialVersionUID = -4410658125006542197L;
+
+	/**
+	 * Creates a view.
+	 *
+	 * @param header the structure of the instances
+	 * @param instances the instances, they should not change while the view
+	 *        is used
+	 */
+	public InstancesView(Instances header, List<Instance> instances) {
+		super(header, 0);
+		m_Instances = instances instanceof ArrayList ? (ArrayList<Instance>) instances
+				: new ArrayList<Instance>(instances);
+	}
+
+	private static UnsupportedOperationException readOnly() {
+		return new UnsupportedOperationException("The view is read-only");
+	}
+
+	public boolean add(Instance instance) {
+		throw readOnly();
+	}
+
+	public void add(int index, Instance instance) {
+		throw readOnly();
+	}
+
+	public Instance set(int index, Instance instance) {
+		throw readOnly();
+	}
+
+	public Instance remove(int index) {
+		throw readOnly();
+	}
+
+	public void delete() {
+		throw readOnly();
+	}
+
+	public void delete(int index) {
+		throw readOnly();
+	}
+
+	public void deleteWithMissing(int attIndex) {
+		throw readOnly();
+	}
+
+	public void deleteWithMissing(Attribute att) {
+		throw readOnly();
+	}
+
+	public void deleteWithMissingClass() {
+		throw readOnly();
+	}
+
+	public void randomize(Random random) {
+		throw readOnly();
+	}
+
+	public void swap(int i, int j) {
+		throw readOnly();
+	}
+
+	public void sort(int attIndex) {
+		throw readOnly();
+	}
+
+	public void sort(Attribute att) {
+		throw readOnly();
+	}
+
+	public void stableSort(int attIndex) {
+		throw readOnly();
+	}
+
+	public void stableSort(Attribute att) {
+		throw readOnly();
+	}
+
+	public void stratify(int numFolds) {
+		throw readOnly();
+	}
+
+	public void insertAttributeAt(Attribute att, int position) {
+		throw readOnly();
+	}
+
+	public void deleteAttributeAt(int position) {
+		throw readOnly();
+	}
+
+	public void deleteAttributeType(int attType) {
+		throw readOnly();
+	}
+
+	public void deleteStringAttributes() {
+		throw readOnly();
+	}
+
+	public void replaceAttributeAt(Attribute att, int position) {
+		throw readOnly();
+	}
+
+	public void renameAttribute(int att, String name) {
+		throw readOnly();
+	}
+
+	public void renameAttribute(Attribute att, String name) {
+		throw readOnly();
+	}
+
+	public void renameAttributeValue(int att, int val, String name) {
+		throw readOnly();
+	}
+
+	public void renameAttributeValue(Attribute att, String val, String name) {
+		throw readOnly();
+	}
+
+	public void setAttributeWeight(int att, double weight) {
+		throw readOnly();
+	}
+
+	public void setAttributeWeight(Attribute att, double weight) {
+		throw readOnly();
+	}
+}
@@ -0,0 +1,110 @@
+package weka.clusterers;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The neighbours found by a batch kNN search. The row ids and distances of
+ * the neighbours of query q are stored at positions q * k ... q * k + k - 1,
+ * closest first. Queries with fewer than k neighbours have their remaining
+ * positions set to row -1 and distance Double.NaN.
+ */
+public class KNNResult implements Serializable {
+
+	private static final long serialVersionUID = -2739450853612084401L;
+
+	/** number of neighbours of each query */
+	protected int m_K;
+
+	/** number of queries */
+	protected int m_NumQueries;
+
+	/** row ids of the neighbours in the training data */
+	protected int[] m_Rows;
+
+	/** distances from the queries to the neighbours */
+	protected double[] m_Distances;
+
+	/** number of distances computed by the search of each query */
+	protected int[] m_DistanceEvaluations;
+
+	/**
+	 * Creates an empty result.
+	 *
+	 * @param numQueries the number of queries
+	 * @param k the number of neighbours of each query
+	 * @throws ArithmeticException if numQueries * k doesn't fit in an int
+	 */
+	public KNNResult(int numQueries, int k) {
+		m_NumQueries = numQueries;
+		m_K = k;
+		//fails clearly rather than with a negative size on huge kNN graphs
+		int size = Math.multiplyExact(numQueries, k);
+		m_Rows = new int[size];
+		m_Distances = new double[size];
+		m_DistanceEvaluations = new int[numQueries];
+		Arrays.fill(m_Rows, -1);
+		Arrays.fill(m_Distances, Double.NaN);
+	}
+
+	/**
+	 * Gets the row id of a neighbour.
+	 *
+	 * @param query the index of the query
+	 * @param neighbor the rank of the neighbour, 0 for the closest
+	 * @return the row id, -1 if the query has fewer neighbours
+	 */
+	public int row(int query, int neighbor) {
+		return m_Rows[query * m_K + neighbor];
+	}
+
+	/**
+	 * Gets the distance to a neighbour.
+	 *
+	 * @param query the index of the query
+	 * @param neighbor the rank of the neighbour, 0 for the closest
+	 * @return the distance, NaN if the query has fewer neighbours
+	 */
+	public double distance(int query, int neighbor) {
+		return m_Distances[query * m_K + neighbor];
+	}
+
+	/**
+	 * Gets the number of distances computed by the search of a query, the
+	 * measure of its cost.
+	 *
+	 * @param query the index of the query
+	 * @return the number of distance evaluations
+	 */
+	public int distanceEvaluations(int query) {
+		return m_DistanceEvaluations[query];
+	}
+
+	/**
+	 * @return the row ids of all neighbours, k per query
+	 */
+	public int[] rows() {
+		return m_Rows;
+	}
+
+	/**
+	 * @return the distances to all neighbours, k per query
+	 */
+	public double[] distances() {
+		return m_Distances;
+	}
+
+	/**
+	 * @return the number of neighbours of each query
+	 */
+	public int k() {
+		return m_K;
+	}
+
+	/**
+	 * @return the number of queries
+	 */
+	public int numQueries() {
+		return m_NumQueries;
+	}
+}
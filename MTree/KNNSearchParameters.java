@@ -0,0 +1,114 @@
+package weka.clusterers;
+
+import java.io.Serializable;
+
+/**
+ * Settings of an approximate kNN search of an MTree. The default settings
+ * give the exact search.
+ * <p/>
+ * With a relaxation epsilon, subtrees are pruned when their lower bound
+ * times (1 + epsilon) exceeds the current k-th distance, so every neighbour
+ * returned is at most (1 + epsilon) times farther than the true neighbour
+ * of the same rank. The caps and the early stop ratio end the search
+ * before the frontier is exhausted, without such a guarantee.
+ */
+public class KNNSearchParameters implements Serializable {
+
+	private static final long serialVersionUID = 4412398013771720529L;
+
+	/** relaxation of the pruning bounds */
+	protected double m_Epsilon = 0;
+
+	/** maximum number of distance evaluations per query, 0 for no limit */
+	protected int m_MaxDistanceEvaluations = 0;
+
+	/** maximum number of nodes visited per query, 0 for no limit */
+	protected int m_MaxNodeVisits = 0;
+
+	/**
+	 * the search stops once the closest node of the frontier is farther than
+	 * this ratio of the current k-th distance
+	 */
+	protected double m_EarlyStopRatio = 1;
+
+	/**
+	 * Sets the relaxation of the pruning bounds.
+	 *
+	 * @param epsilon the relaxation, 0 for the exact search
+	 * @throws Exception if epsilon is negative
+	 */
+	public void setEpsilon(double epsilon) throws Exception {
+		if (epsilon < 0) {
+			throw new Exception("Epsilon must be >= 0");
+		}
+		m_Epsilon = epsilon;
+	}
+
+	/**
+	 * @return the relaxation of the pruning bounds
+	 */
+	public double getEpsilon() {
+		return m_Epsilon;
+	}
+
+	/**
+	 * Sets the maximum number of distance evaluations per query.
+	 *
+	 * @param max the maximum, 0 for no limit
+	 * @throws Exception if max is negative
+	 */
+	public void setMaxDistanceEvaluations(int max) throws Exception {
+		if (max < 0) {
+			throw new Exception("Maximum number of distance evaluations must be >= 0");
+		}
+		m_MaxDistanceEvaluations = max;
+	}
+
+	/**
+	 * @return the maximum number of distance evaluations per query
+	 */
+	public int getMaxDistanceEvaluations() {
+		return m_MaxDistanceEvaluations;
+	}
+
+	/**
+	 * Sets the maximum number of nodes visited per query.
+	 *
+	 * @param max the maximum, 0 for no limit
+	 * @throws Exception if max is negative
+	 */
+	public void setMaxNodeVisits(int max) throws Exception {
+		if (max < 0) {
+			throw new Exception("Maximum number of node visits must be >= 0");
+		}
+		m_MaxNodeVisits = max;
+	}
+
+	/**
+	 * @return the maximum number of nodes visited per query
+	 */
+	public int getMaxNodeVisits() {
+		return m_MaxNodeVisits;
+	}
+
+	/**
+	 * Sets the early stop ratio: the search ends once the closest node left
+	 * is farther than ratio * the current k-th distance.
+	 *
+	 * @param ratio the ratio, in (0, 1], 1 for the exact search
+	 * @throws Exception if the ratio is out of range
+	 */
+	public void setEarlyStopRatio(double ratio) throws Exception {
+		if (ratio <= 0 || ratio > 1) {
+			throw new Exception("Early stop ratio must be in (0, 1]");
+		}
+		m_EarlyStopRatio = ratio;
+	}
+
+	/**
+	 * @return the early stop ratio
+	 */
+	public double getEarlyStopRatio() {
+		return m_EarlyStopRatio;
+	}
+}
@@ -0,0 +1,18 @@
+package weka.clusterers;
+
+import java.io.Serializable;
+
+class MTreeBean implements Serializable{
+
+	/**
+	 * The class containing the root node
+	 */
+	private static final long serialVersionUID = 3498776313092608804L;
+	public Node root;
+
+
+	public MTreeBean()
+	{
+		root = new Node();
+	}	
+}
@@ -0,0 +1,382 @@
+package weka.clusterers;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.Tag;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+
+/**
+ * Builds an MTree for each of several seeds and keeps the best one. The
+ * missing values are replaced and the ranges of the distance are computed
+ * once, all the trees read the same rows. The trees are built in parallel,
+ * as many at a time as the memory budget allows, and every tree but the best
+ * one so far is dropped as soon as it is scored.
+ *
+ * The trees are copies of a template MTree holding the options, only their
+ * seed differs.
+ */
+public class MTreeEnsemble implements Serializable {
+
+	private static final long serialVersionUID = -5230870245174328470L;
+
+	public static final int SUM_OF_SQUARED_ERRORS = 0;
+	public static final int DAVIES_BOULDIN = 1;
+	public static final int DUNN = 2;
+	public static final int XIE_BENI = 3;
+	public static final int BANFELD_RAFTERY = 4;
+	public static final int MCCLAIN_RAO = 5;
+	public static final int RAY_TURI = 6;
+	public static final int CALINSKI_HARABASZ = 7;
+	public static final int PBM = 8;
+
+	/** the indexes of CQM, as VoteK uses them. Dunn and McClain-Rao are quadratic in the rows */
+	public static final Tag[] TAGS_QUALITY = { new Tag(SUM_OF_SQUARED_ERRORS, "Sum of squared errors"),
+			new Tag(DAVIES_BOULDIN, "Davies-Bouldin"), new Tag(DUNN, "Dunn"), new Tag(XIE_BENI, "Xie-Beni"),
+			new Tag(BANFELD_RAFTERY, "Banfeld-Raftery"), new Tag(MCCLAIN_RAO, "McClain-Rao"),
+			new Tag(RAY_TURI, "Ray-Turi"), new Tag(CALINSKI_HARABASZ, "Calinski-Harabasz"), new Tag(PBM, "PBM") };
+
+	/** estimated bytes held by a tree for each row, besides the values of the row */
+	private static final long TREE_BYTES_PER_ROW = 160;
+
+	/** estimated bytes held by a tree for each value of a row, in the cluster features and the routing objects */
+	private static final long TREE_BYTES_PER_VALUE = 16;
+
+	/** the options of the trees */
+	protected MTree m_Template = new MTree();
+
+	protected int m_FirstSeed = 0;
+	protected int m_NumSeeds = 10;
+	protected int m_Quality = SUM_OF_SQUARED_ERRORS;
+	protected int m_executionSlots = Runtime.getRuntime().availableProcessors();
+
+	/** bytes the trees being built may use, 0 for half of the heap left */
+	protected long m_MemoryBudget = 0;
+
+	/** the best tree */
+	protected MTree m_Best = null;
+	protected SeedStatistics m_BestStatistics = null;
+
+	/** the statistics of each seed, in seed order */
+	protected List<SeedStatistics> m_Statistics = new ArrayList<SeedStatistics>();
+
+	/** For parallel execution mode */
+	protected transient ExecutorService m_executorPool;
+
+	/**
+	 * The result of the tree built with one seed.
+	 */
+	public static class SeedStatistics implements Serializable {
+
+		private static final long serialVersionUID = 2804938641953092547L;
+
+		public int seed;
+		public int numClusters;
+		public double sumOfSquaredErrors;
+		/** the value of the selected quality index, the sum of squared errors by default */
+		public double quality;
+		public int[] clusterSizes;
+		public long buildMillis;
+
+		public String toString() {
+			return "seed " + seed + ": " + numClusters + " clusters, SSE " + Utils.doubleToString(sumOfSquaredErrors, 4)
+					+ ", quality " + Utils.doubleToString(quality, 4) + ", " + buildMillis + " ms";
+		}
+	}
+
+	/**
+	 * Builds a tree for each seed and keeps the best one.
+	 *
+	 * @param data the instances to cluster, only read
+	 * @throws Exception if a tree can not be built
+	 */
+	public void buildClusterer(Instances data) throws Exception {
+
+		m_Template.getCapabilities().testWithFail(data);
+
+		ReplaceMissingValues filter = new ReplaceMissingValues();
+		filter.setInputFormat(data);
+		final Instances filtered = Filter.useFilter(data, filter);
+		final Instances ranges = ranges(filtered);
+		final Instances original = data;
+		final ReplaceMissingValues replace = filter;
+
+		m_Best = null;
+		m_BestStatistics = null;
+		m_Statistics = new ArrayList<SeedStatistics>();
+
+		int parallel = numParallelTrees(filtered);
+		if (parallel <= 1 || m_NumSeeds <= 1) {
+			for (int seed = m_FirstSeed; seed < m_FirstSeed + m_NumSeeds; seed++)
+				m_Statistics.add(buildSeed(seed, original, filtered, replace, ranges));
+			return;
+		}
+
+		m_executorPool = Executors.newFixedThreadPool(parallel);
+		try {
+			List<Future<SeedStatistics>> results = new ArrayList<Future<SeedStatistics>>();
+			for (int seed = m_FirstSeed; seed < m_FirstSeed + m_NumSeeds; seed++) {
+				final int s = seed;
+				results.add(m_executorPool.submit(new Callable<SeedStatistics>() {
+					@Override
+					public SeedStatistics call() throws Exception {
+						return buildSeed(s, original, filtered, replace, ranges);
+					}
+				}));
+			}
+			for (Future<SeedStatistics> result : results)
+				m_Statistics.add(result.get());
+		} finally {
+			m_executorPool.shutdown();
+			m_executorPool = null;
+		}
+	}
+
+	/**
+	 * Builds the tree of a seed, scores it and keeps it if it is the best so
+	 * far.
+	 */
+	private SeedStatistics buildSeed(int seed, Instances data, Instances filtered, ReplaceMissingValues filter,
+			Instances ranges) throws Exception {
+
+		MTree tree = (MTree) AbstractClusterer.makeCopy(m_Template);
+		tree.setSeed(seed);
+		//the trees are already built in parallel
+		tree.setNumExecutionSlots(1);
+
+		long start = System.currentTimeMillis();
+		tree.buildClusterer(data, filtered, filter, ranges);
+
+		SeedStatistics statistics = new SeedStatistics();
+		statistics.seed = seed;
+		statistics.buildMillis = System.currentTimeMillis() - start;
+		statistics.numClusters = tree.numberOfClusters();
+		statistics.sumOfSquaredErrors = tree.getSquaredError();
+		statistics.clusterSizes = tree.getClusterSizes();
+		statistics.quality = quality(tree, filtered);
+		offer(tree, statistics);
+		return statistics;
+	}
+
+	/**
+	 * Keeps a tree if it is better than the best one so far. The lowest seed
+	 * wins ties, so the result doesn't depend on the scheduling.
+	 */
+	private synchronized void offer(MTree tree, SeedStatistics statistics) {
+		if (m_BestStatistics != null) {
+			double sign = higherIsBetter() ? -1 : 1;
+			int compare = Double.compare(sign * statistics.quality, sign * m_BestStatistics.quality);
+			if (compare > 0 || (compare == 0 && statistics.seed > m_BestStatistics.seed))
+				return;
+		}
+		m_Best = tree;
+		m_BestStatistics = statistics;
+	}
+
+	/**
+	 * Computes the selected quality index of a tree.
+	 */
+	private double quality(MTree tree, Instances data) throws Exception {
+		if (m_Quality == SUM_OF_SQUARED_ERRORS)
+			return tree.getSquaredError();
+
+		CQM cqm = new CQM();
+		Instances centroids = tree.getClusterCentroids();
+		int k = tree.numberOfClusters();
+		int[] assignments = tree.getAssignments();
+		switch (m_Quality) {
+		case DAVIES_BOULDIN:
+			return cqm.getDaviesBouldinIndex(centroids, k, data, assignments);
+		case DUNN:
+			return cqm.getDunnIndex(centroids, k, data, assignments);
+		case XIE_BENI:
+			return cqm.getXiBeniIndex(centroids, k, data, assignments);
+		case BANFELD_RAFTERY:
+			return cqm.getBanfeldRafteryIndex(centroids, k, data, assignments);
+		case MCCLAIN_RAO:
+			return cqm.getMcClainRaoIndex(k, data, assignments);
+		case RAY_TURI:
+			return cqm.getRayTuriIndex(centroids, k, data, assignments);
+		case CALINSKI_HARABASZ:
+			return cqm.getCalinskiHarabaszIndex(mean(data), centroids, k, data, assignments);
+		default:
+			return cqm.getPBMindex(mean(data), centroids, k, data, assignments);
+		}
+	}
+
+	/**
+	 * @return true if the selected index is better when it is higher, as VoteK
+	 *         votes with them
+	 */
+	private boolean higherIsBetter() {
+		return m_Quality == DUNN || m_Quality == CALINSKI_HARABASZ;
+	}
+
+	/**
+	 * @return the mean of the rows, the global centroid of the CQM indexes
+	 */
+	private static Instance mean(Instances data) {
+		double[] values = new double[data.numAttributes()];
+		for (int j = 0; j < values.length; j++)
+			values[j] = data.meanOrMode(j);
+		Instance mean = new DenseInstance(1.0, values);
+		mean.setDataset(data);
+		return mean;
+	}
+
+	/**
+	 * Gets two rows holding the minimum and the maximum of each attribute, the
+	 * distances of all the trees compute their ranges from them instead of
+	 * the whole data. An attribute without values is missing in both.
+	 */
+	private static Instances ranges(Instances data) {
+		int n = data.numAttributes();
+		double[] min = new double[n];
+		double[] max = new double[n];
+		for (int j = 0; j < n; j++) {
+			min[j] = Double.POSITIVE_INFINITY;
+			max[j] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = 0; i < data.numInstances(); i++) {
+			Instance inst = data.instance(i);
+			for (int j = 0; j < n; j++) {
+				if (inst.isMissing(j))
+					continue;
+				min[j] = Math.min(min[j], inst.value(j));
+				max[j] = Math.max(max[j], inst.value(j));
+			}
+		}
+		for (int j = 0; j < n; j++) {
+			if (min[j] > max[j]) {
+				min[j] = Utils.missingValue();
+				max[j] = Utils.missingValue();
+			}
+		}
+
+		Instances bounds = new Instances(data, 2);
+		bounds.add(new DenseInstance(1.0, min));
+		bounds.add(new DenseInstance(1.0, max));
+		return bounds;
+	}
+
+	/**
+	 * Computes how many trees are built at the same time: at most the number
+	 * of execution slots, and as many as fit in the memory budget besides the
+	 * best tree.
+	 */
+	private int numParallelTrees(Instances data) {
+		long budget = m_MemoryBudget;
+		if (budget <= 0) {
+			Runtime runtime = Runtime.getRuntime();
+			budget = (runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory()) / 2;
+		}
+		long treeBytes = data.numInstances() * (TREE_BYTES_PER_ROW + TREE_BYTES_PER_VALUE * data.numAttributes());
+		long fit = budget / Math.max(1, treeBytes) - 1;
+		return (int) Math.max(1, Math.min(m_executionSlots, fit));
+	}
+
+	/**
+	 * @return the best tree, null before the build
+	 */
+	public MTree getBestClusterer() {
+		return m_Best;
+	}
+
+	/**
+	 * @return the statistics of the best tree, null before the build
+	 */
+	public SeedStatistics getBestStatistics() {
+		return m_BestStatistics;
+	}
+
+	/**
+	 * @return the statistics of each seed, in seed order
+	 */
+	public List<SeedStatistics> getSeedStatistics() {
+		return m_Statistics;
+	}
+
+	/**
+	 * Sets the tree whose options are used, it is copied for every seed.
+	 *
+	 * @param template the tree, it is not built
+	 */
+	public void setTemplate(MTree template) {
+		m_Template = template;
+	}
+
+	public MTree getTemplate() {
+		return m_Template;
+	}
+
+	/**
+	 * Sets the seeds: first, first + 1, ... first + count - 1.
+	 *
+	 * @param first the first seed
+	 * @param count the number of seeds
+	 */
+	public void setSeeds(int first, int count) {
+		m_FirstSeed = first;
+		m_NumSeeds = count;
+	}
+
+	public int getFirstSeed() {
+		return m_FirstSeed;
+	}
+
+	public int getNumSeeds() {
+		return m_NumSeeds;
+	}
+
+	/**
+	 * Sets the index the best tree is selected with.
+	 *
+	 * @param quality one of TAGS_QUALITY
+	 */
+	public void setQualityIndex(SelectedTag quality) {
+		if (quality.getTags() == TAGS_QUALITY)
+			m_Quality = quality.getSelectedTag().getID();
+	}
+
+	public SelectedTag getQualityIndex() {
+		return new SelectedTag(m_Quality, TAGS_QUALITY);
+	}
+
+	/**
+	 * Sets the number of trees built in parallel.
+	 *
+	 * @param slots the number of execution slots
+	 */
+	public void setNumExecutionSlots(int slots) {
+		m_executionSlots = slots;
+	}
+
+	public int getNumExecutionSlots() {
+		return m_executionSlots;
+	}
+
+	/**
+	 * Sets the memory the trees being built may use, which bounds the number
+	 * of trees built in parallel.
+	 *
+	 * @param bytes the budget, 0 for half of the heap left at the build
+	 */
+	public void setMemoryBudget(long bytes) {
+		m_MemoryBudget = bytes;
+	}
+
+	public long getMemoryBudget() {
+		return m_MemoryBudget;
+	}
+}
@@ -2,6 +2,7 @@ package weka.clusterers;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -12,17 +13,20 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 import weka.classifiers.rules.DecisionTableHashKey;
 import weka.clusterers.ClusterEvaluation;
@@ -45,6 +49,8 @@ import weka.core.EuclideanDistance;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.ManhattanDistance;
+import weka.core.MinkowskiDistance;
+import weka.core.NormalizableDistance;
 import weka.core.Option;
 import weka.core.SelectedTag;
 import weka.core.Tag;
@@ -53,6 +59,7 @@ import weka.core.TechnicalInformationHandler;
 import weka.core.Utils;
 import weka.core.WeightedInstancesHandler;
 import weka.core.Capabilities.Capability;
+import weka.core.converters.ArffLoader;
 import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.Center;
 import weka.filters.unsupervised.attribute.ReplaceMissingValues;
@@ -89,61 +96,196 @@ import weka.filters.unsupervised.attribute.ReplaceMissingValues;
  * <!-- options-end -->
  */ 
 
-class Node implements Serializable {
+class InstanceRadix implements Serializable
+{
+	private static final long serialVersionUID = 3838507051790773554L;
+	public Instance center;
+	public double radix;
+}
 
+/**
+ * Bounded max-heap of the closest instances found by a kNN search.
+ */
+class NeighborHeap
+{
+	double[] distances;
+	Instance[] instances;
+	int size = 0;
+	
+	NeighborHeap(int k)
+	{
+		distances = new double[k];
+		instances = new Instance[k];
+	}
+	
 	/**
-	 * A Node represents a cluster
+	 * @return the distance an instance must be under to enter the heap
 	 */
-	private static final long serialVersionUID = 3838507051790773553L;
-	public int nrKeys = 0;
-	public boolean isLeaf = true;
-	public ArrayList <Double> radix; 
-	public ArrayList<Node> routes; 
-	public ArrayList<Instance> instances;
-	public Instance parent;
-
-
-	public Node(int size, Instances train)
+	double bound()
 	{
-		radix = new ArrayList<Double>(size);  
-		routes = new ArrayList<Node>(size);   //the children
-		instances = new ArrayList<Instance>(size); 
-		nrKeys = 0;
-		isLeaf = true;
-
-		for (int i = 0; i < size; i++) {
-			this.radix.add(new Double(0.0));
-			this.routes.add(new Node());
-			Instance newInst = new DenseInstance(train.numAttributes());
-			newInst.setDataset(train);
-			this.instances.add(newInst);
+		return size < distances.length ? Double.MAX_VALUE : distances[0];
+	}
+	
+	/**
+	 * Empties the heap so it can be used for another query.
+	 */
+	void clear()
+	{
+		size = 0;
+	}
+	
+	/**
+	 * Adds an instance if it is closer than the farthest one of a full heap.
+	 */
+	void offer(double distance, Instance instance)
+	{
+		if(size < distances.length)
+		{
+			//sift up from the new leaf
+			int i = size++;
+			while(i > 0)
+			{
+				int parent = (i - 1) >> 1;
+				if(distances[parent] >= distance)
+					break;
+				distances[i] = distances[parent];
+				instances[i] = instances[parent];
+				i = parent;
+			}
+			distances[i] = distance;
+			instances[i] = instance;
+		}
+		else if(size > 0 && distance < distances[0])
+		{
+			siftDown(0, distance, instance, size);
 		}
 	}
-
-	public Node() {
-		radix = new ArrayList<Double>();  
-		routes = new ArrayList<Node>();   
-		instances = new ArrayList<Instance>();
-		nrKeys = 0;
-		isLeaf = true;
+	
+	private void siftDown(int i, double distance, Instance instance, int n)
+	{
+		while(true)
+		{
+			int child = 2 * i + 1;
+			if(child >= n)
+				break;
+			if(child + 1 < n && distances[child + 1] > distances[child])
+				child++;
+			if(distances[child] <= distance)
+				break;
+			distances[i] = distances[child];
+			instances[i] = instances[child];
+			i = child;
+		}
+		distances[i] = distance;
+		instances[i] = instance;
+	}
+	
+	/**
+	 * Sorts the heap in place, closest first. The heap can not be used
+	 * for offers after that.
+	 * 
+	 * @return the number of instances
+	 */
+	int sort()
+	{
+		for(int n = size - 1; n > 0; n--)
+		{
+			double distance = distances[n];
+			Instance instance = instances[n];
+			distances[n] = distances[0];
+			instances[n] = instances[0];
+			siftDown(0, distance, instance, n);
+		}
+		return size;
 	}
-
-}
-
-class InstanceRadix implements Serializable
-{
-	private static final long serialVersionUID = 3838507051790773554L;
-	public Instance center;
-	public double radix;
-	public boolean isPlaceHolder = false;
 }
 
-class PriorityQueueElement
+/**
+ * Min-heap of the nodes still to be visited by a kNN search, ordered by the
+ * smallest possible distance from the query to their instances.
+ */
+class NodeQueue
 {
-	private static final long serialVersionUID = 3838507051790773555L;
-	Node node; // a node from the M-tree
-	Instance parent; // the parent object of the node in the tree
-	double dmin; // the minimum distance from which an object from this node's children can be found from Q
+	Node[] nodes;
+	double[] dmin;
+	/** distance from the query to the parent routing object of each node, -1 if unknown */
+	double[] distanceToParent;
+	int size = 0;
+	
+	NodeQueue(int capacity)
+	{
+		nodes = new Node[capacity];
+		dmin = new double[capacity];
+		distanceToParent = new double[capacity];
+	}
+	
+	/**
+	 * Empties the queue so it can be used for another query.
+	 */
+	void clear()
+	{
+		for(int i = 0; i < size; i++)
+			nodes[i] = null;
+		size = 0;
+	}
+	
+	void add(Node node, double d, double parentDistance)
+	{
+		if(size == nodes.length)
+		{
+			nodes = Arrays.copyOf(nodes, 2 * size);
+			dmin = Arrays.copyOf(dmin, 2 * size);
+			distanceToParent = Arrays.copyOf(distanceToParent, 2 * size);
+		}
+		int i = size++;
+		while(i > 0)
+		{
+			int parent = (i - 1) >> 1;
+			if(dmin[parent] <= d)
+				break;
+			nodes[i] = nodes[parent];
+			dmin[i] = dmin[parent];
+			distanceToParent[i] = distanceToParent[parent];
+			i = parent;
+		}
+		nodes[i] = node;
+		dmin[i] = d;
+		distanceToParent[i] = parentDistance;
+	}
+	
+	/**
+	 * Removes the closest node, read from index 0 before.
+	 */
+	void removeTop()
+	{
+		size--;
+		Node node = nodes[size];
+		double d = dmin[size];
+		double parentDistance = distanceToParent[size];
+		nodes[size] = null;
+		
+		int i = 0;
+		while(true)
+		{
+			int child = 2 * i + 1;
+			if(child >= size)
+				break;
+			if(child + 1 < size && dmin[child + 1] < dmin[child])
+				child++;
+			if(dmin[child] >= d)
+				break;
+			nodes[i] = nodes[child];
+			dmin[i] = dmin[child];
+			distanceToParent[i] = distanceToParent[child];
+			i = child;
+		}
+		if(size > 0)
+		{
+			nodes[i] = node;
+			dmin[i] = d;
+			distanceToParent[i] = parentDistance;
+		}
+	}
 }
 
 class SplitOutput implements Serializable{
@@ -155,19 +297,117 @@ class SplitOutput implements Serializable{
 	public ArrayList <Double> radix = new ArrayList<Double>();
 }
 
-class MTreeBean implements Serializable{
+/**
+ * The cluster of each entry of a node proposed by the split policy.
+ */
+class SplitAssignment {
+
+	/** cluster of each entry of the node */
+	public int[] assignments = new int[0];
+	public int numClusters = 0;
+
+	public SplitAssignment() {
+	}
 
 	/**
-	 * The class containing the root node
+	 * @param assignments the clusters, numbered from 0
 	 */
-	private static final long serialVersionUID = 3498776313092608804L;
-	public Node root;
+	public SplitAssignment(int[] assignments) {
+		this.assignments = assignments;
+		for (int i = 0; i < assignments.length; i++)
+			numClusters = Math.max(numClusters, assignments[i] + 1);
+	}
 
+	public SplitAssignment(ClusterEvaluation eval) {
+		double[] clusters = eval.getClusterAssignments();
+		assignments = new int[clusters.length];
+		for (int i = 0; i < clusters.length; i++)
+			assignments[i] = (int) clusters[i];
+		numClusters = eval.getNumClusters();
+	}
 
-	public MTreeBean()
-	{
-		root = new Node();
-	}	
+	/**
+	 * @return true if the entries are not all in the same cluster
+	 */
+	public boolean isValid() {
+		if (numClusters > 0)
+			for (int i = 0; i < assignments.length - 1; i++)
+				if (assignments[i] != assignments[i + 1])
+					return true;
+		return false;
+	}
+}
+
+/**
+ * Pivot table over the entries of the root (LAESA): the distance from every
+ * entry to a few entries chosen far apart. The distances from a query to the
+ * pivots bound its distance to every entry from below, so the closest entry
+ * is found computing few of the distances. The entries are sorted by their
+ * distance to the first pivot, the search only visits the band around the
+ * distance of the query to it.
+ */
+class RootIndex {
+
+	/** the root the table was built for */
+	public final Node root;
+	/** the entries used as pivots */
+	public final int[] pivots;
+	/** the entries by increasing distance to the first pivot */
+	public final int[] order;
+	/** distance from the entry order[i] to pivot j, at i * pivots.length + j */
+	public final double[] table;
+
+	public RootIndex(Node root, int[] pivots, int[] order, double[] table) {
+		this.root = root;
+		this.pivots = pivots;
+		this.order = order;
+		this.table = table;
+	}
+
+	/**
+	 * @return the number of root entries in the table
+	 */
+	public int size() {
+		return order.length;
+	}
+
+	/**
+	 * @return the first position whose distance to the first pivot is not
+	 *         smaller than the given one
+	 */
+	public int position(double distance) {
+		int p = pivots.length;
+		int low = 0;
+		int high = order.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (table[middle * p] < distance)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Computes the lower bound of the distance from a query to an entry,
+	 * giving up once it is larger than the cutoff.
+	 *
+	 * @param i the position of the entry in order
+	 * @param pivotDistances the distances from the query to the pivots
+	 * @param cutoff the largest bound of interest
+	 * @return the bound, or Double.POSITIVE_INFINITY if it is larger than the cutoff
+	 */
+	public double lowerBound(int i, double[] pivotDistances, double cutoff) {
+		int p = pivots.length;
+		double bound = 0;
+		for (int j = 0; j < p; j++) {
+			bound = Math.max(bound, Math.abs(pivotDistances[j] - table[i * p + j]));
+			if (bound > cutoff)
+				return Double.POSITIVE_INFINITY;
+		}
+		return bound;
+	}
 }
 
 /**
@@ -177,8 +417,14 @@ public class MTree extends RandomizableClusterer implements
 NumberOfClustersRequestable, WeightedInstancesHandler,
 TechnicalInformationHandler {
 	int index2 = 0;	
-	private static Instances train;
+	private Instances train;
 	protected DistanceFunction m_DistanceFunction;
+	/** dense kernel computing m_DistanceFunction, null if the distance is not supported */
+	protected DistanceKernel m_Kernel;
+	/** kernel computing the squared distance, null if it is not cheaper than squaring the distance */
+	protected DistanceKernel m_SquaredKernel;
+	/** kernel computing m_DistanceFunction on normalized rows, used by the native split policies */
+	protected DistanceKernel m_RowKernel;
 	private DecimalFormat Format = new DecimalFormat("#0.00");
 	long stopTime = 0;
 	long startTime = 0;
@@ -218,18 +464,85 @@ TechnicalInformationHandler {
 	 */
 	private boolean m_SeedOptimisation = true;
 	
+	/**
+	 * Build the tree top-down from the whole training set
+	 * instead of inserting the instances one at a time?
+	 */
+	private boolean m_BulkLoad = false;
+	
+	/**
+	 * maximum number of instances stored in a leaf built by bulk loading.
+	 */
+	private int m_BulkLoadLeafSize = 64;
+	
+	/**
+	 * growth ratio of a node after which a "no split" decision is computed
+	 * again; 0 means evaluating the node at every insertion.
+	 */
+	private double m_SplitCheckGrowth = 0.1;
+	
+	/**
+	 * relative change of the covering radius of a node after which
+	 * a "no split" decision is computed again.
+	 */
+	private double m_SplitCheckRadiusChange = 0.05;
+	
 	public static final int CANOPY = 0;
 	public static final int CASCADE_KMEANS = 1;
 	public static final int COBWEB = 2;
 	public static final int FARTHEST_FIRST = 3;
 	public static final int HIERARCHICAL_CLUSTERER = 4;
+	/** split policies of SplitEngine, working on the normalized rows of the node */
+	public static final int NATIVE_KMEANS = 5;
+	public static final int NATIVE_FARTHEST_FIRST = 6;
+	public static final int NATIVE_CANOPY = 7;
 	
 	public static final Tag[] TAGS_SELECTION = { new Tag(CANOPY, "Canopy"),
 		    new Tag(CASCADE_KMEANS, "cascade_k-means"), new Tag(COBWEB, "CobWeb"),
-		    new Tag(FARTHEST_FIRST, "Farthest first"), new Tag(HIERARCHICAL_CLUSTERER, "Hierarchical Clusterer") };
+		    new Tag(FARTHEST_FIRST, "Farthest first"), new Tag(HIERARCHICAL_CLUSTERER, "Hierarchical Clusterer"),
+		    new Tag(NATIVE_KMEANS, "Native k-means++"), new Tag(NATIVE_FARTHEST_FIRST, "Native farthest first"),
+		    new Tag(NATIVE_CANOPY, "Native canopy") };
+	
+	/** maximum number of Lloyd iterations of the native k-means split */
+	private static final int NATIVE_KMEANS_ITERATIONS = 20;
 	
 	protected int m_splitPolicy = CANOPY;
 	
+	public static final int CENTER_EXACT = 0;
+	public static final int CENTER_SAMPLED = 1;
+	public static final int CENTER_INCREMENTAL = 2;
+	
+	public static final Tag[] CENTER_SELECTION = { new Tag(CENTER_EXACT, "Exact"),
+		    new Tag(CENTER_SAMPLED, "Sampled"), new Tag(CENTER_INCREMENTAL, "Incremental") };
+	
+	/** how the routing object of a node is chosen */
+	protected int m_CenterSelection = CENTER_EXACT;
+	
+	/** number of candidates evaluated by the sampled center selection */
+	protected int m_CenterSampleSize = 32;
+	
+	/** nodes smaller than this have their center chosen in the calling thread */
+	private static final int MIN_PARALLEL_CENTER_SIZE = 256;
+	
+	public static final int SEEDING_KMEANS_PLUS_PLUS = 0;
+	public static final int SEEDING_KMEANS_PARALLEL = 1;
+	public static final int SEEDING_AFK_MC2 = 2;
+	
+	public static final Tag[] SEEDING_SELECTION = { new Tag(SEEDING_KMEANS_PLUS_PLUS, "k-means++"),
+		    new Tag(SEEDING_KMEANS_PARALLEL, "k-means||"), new Tag(SEEDING_AFK_MC2, "AFK-MC2") };
+	
+	/** how seedOptimisation chooses the seeds */
+	protected int m_Seeding = SEEDING_KMEANS_PLUS_PLUS;
+	
+	/** number of oversampling rounds of k-means|| */
+	private static final int KMEANS_PARALLEL_ROUNDS = 5;
+	
+	/** length of the Markov chain choosing each AFK-MC2 seed */
+	private static final int AFK_MC2_CHAIN_LENGTH = 200;
+	
+	/** datasets smaller than this have their seed distances updated in the calling thread */
+	private static final int MIN_PARALLEL_SEEDING_SIZE = 4096;
+	
 	protected double m_CobWebAcuity = 0.1;
 	protected double m_CobWebCutoff = 1;
 	
@@ -275,8 +588,49 @@ TechnicalInformationHandler {
 
 	public int numberOfIterations = 0;
 	public int INFINITY = 10000000;
-	public ArrayList<Instance> rangeQueryInstances = new ArrayList<Instance>();
 	public Instances testCentroids = null;
+	
+	/** rows of the training data chosen by seedOptimisation */
+	protected int[] m_SeedRows = null;
+	
+	/** the leaf holding each instance of the tree, kept up to date by insertions and splits */
+	protected IdentityHashMap<Instance, Node> m_LeafIndex = null;
+	
+	/** the root entry (cluster) each leaf belongs to, computed at the end of the build */
+	protected IdentityHashMap<Node, Integer> m_LeafCluster = null;
+	
+	/** row of each instance given to buildClusterer */
+	protected transient IdentityHashMap<Instance, Integer> m_RowIndex = null;
+	
+	/** cluster of each training row */
+	protected int[] m_RowClusters = null;
+	
+	/** row of each instance of train, used to report the neighbours of batch queries */
+	protected IdentityHashMap<Instance, Integer> m_TrainRowIndex = null;
+	
+	/** the instance of each row, built on the first insert or delete. Deleted rows are null */
+	protected ArrayList<Instance> m_TrainRows = null;
+	
+	/** counters of the build and the queries, null when they are not collected */
+	protected MTreeMetrics m_Metrics = null;
+	
+	/** pool of the batch queries, see queryPool() */
+	protected transient ForkJoinPool m_QueryPool = null;
+	
+	/** number of queries handled by one task of a batch kNN search */
+	private static final int KNN_BATCH_CHUNK = 64;
+	
+	/** leaves left with fewer entries by a delete are removed and their entries inserted again */
+	private static final int MIN_LEAF_ENTRIES = 2;
+	
+	/** number of root entries from which new instances are assigned through m_RootIndex */
+	private static final int ROOT_INDEX_MIN_ENTRIES = 32;
+	
+	/** relative error of the distances allowed by the bounds of m_RootIndex */
+	private static final double ROOT_INDEX_SLACK = 1 + 1e-9;
+	
+	/** pivot table over the root entries, built by the first assignment needing it */
+	protected transient volatile RootIndex m_RootIndex = null;
 
 	public MTree() { 
 
@@ -342,7 +696,8 @@ TechnicalInformationHandler {
 		
 		result.addElement(new Option(
 			      "\tSplit policy to use.\n\t0 = Canopy, 1 = CascadeSimpleKMeans, "
-			        + "2 = CobWeb, 3 = farthest first, 4 = HierarchicalClusterer.\n\t(default = 0)", "split", 1,
+			        + "2 = CobWeb, 3 = farthest first, 4 = HierarchicalClusterer,\n\t"
+			        + "5 = native k-means++, 6 = native farthest first, 7 = native canopy.\n\t(default = 0)", "split", 1,
 			      "-split"));
 
 		result.add(new Option("\tDistance function to use.\n"
@@ -357,18 +712,32 @@ TechnicalInformationHandler {
 		return result.elements();
 	}
 
+	/**
+	 * Inserts an instance. The tree is locked during the insertion, so the
+	 * cluster features can be read by other threads meanwhile.
+	 */
 	public void mTreeInsert(MTreeBean tree, Instance inst) {
+		synchronized (tree) {
+			insertEntry(tree, inst);
+		}
+	}
+	
+	private void insertEntry(MTreeBean tree, Instance inst) {
 		/**
 		 * we will perform the split for the root node if the root is a Leaf and
 		 * splitPolicy algorithm decides to split the node in at least 2 other nodes.
 		 * The number of nodes in which we can split the root must be less or equal
 		 * than MaxRootSize  
 		 */
-		if(tree.root.isLeaf && tree.root.nrKeys > 0 && tree.root.instances.size() > 0) {
-
-			ClusterEvaluation eval = voteKClustering(tree.root);
-			if(IsClusterEvaluationValid(eval)) {
-				int nrClustersObtained = eval.getNumClusters();
+		if(tree.root.isLeaf && tree.root.nrKeys > 0 && tree.root.instances.size() > 0
+				&& isSplitCheckNeeded(tree.root, 0)) {
+
+			boolean split = false;
+			long start = m_Metrics != null ? System.nanoTime() : 0;
+			int nodeSize = tree.root.nrKeys;
+			SplitAssignment eval = voteKClustering(tree.root);
+			if(eval.isValid()) {
+				int nrClustersObtained = eval.numClusters;
 				if(nrClustersObtained > 1) //we must split the node
 				{
 					Node newRoot = new Node(m_NumClusters, train);
@@ -377,7 +746,7 @@ TechnicalInformationHandler {
 					newRoot.isLeaf = false;
 
 					SplitOutput splitOutput;
-					int numberOfClustersAfterSplit = eval.getNumClusters();
+					int numberOfClustersAfterSplit = eval.numClusters;
 
 					if(numberOfClustersAfterSplit > m_NumClusters) {
 						numberOfClustersAfterSplit = m_NumClusters;
@@ -391,13 +760,19 @@ TechnicalInformationHandler {
 						newRoot.routes.add(index, splitOutput.clusters.get(index));
 						newRoot.instances.add(index, splitOutput.centers.get(index));
 						newRoot.radix.add(index, splitOutput.radix.get(index));
+						newRoot.parentDistances.add(index, 0.0);
 
 						newRoot.nrKeys++;
 					}
 
 					tree.root = newRoot;
+					split = true;
 				}
 			}
+			if(m_Metrics != null)
+				m_Metrics.splitCheck(m_splitPolicy, nodeSize, split ? tree.root.nrKeys : 0, System.nanoTime() - start);
+			if(!split)
+				recordSplitCheck(tree.root, 0);
 		}
 		m_Node_Insert_Nonfull(tree.root, inst);	
 	}
@@ -405,14 +780,20 @@ TechnicalInformationHandler {
 	public void m_Node_Insert_Nonfull(Node node, Instance inst) {
 
 		SplitOutput splitOut;
+		//distance from inst to the routing object of the current node
+		double parentDistance = 0;
+		Node parentNode = null;
+		int parentIdx = 0;
 		while (!node.isLeaf){
 			int i,idx = 0;
-			Double d = Double.MAX_VALUE;
+			double d;
+			double min = Double.MAX_VALUE;
+			addFeature(node, inst);
 
 			if(node.nrKeys > 0) {
 
-				Double min = m_DistanceFunction.distance(inst, node.instances.get(0));
-
+				//only the closest routing object matters, compare squared distances
+				countDistances(MTreeMetrics.PHASE_INSERT, node.nrKeys);
 				for (i = 0; i < node.nrKeys; i++) {
 					if (node.instances.get(i) == null)
 						node.instances.set(i, new DenseInstance(train.numAttributes()));
@@ -420,9 +801,9 @@ TechnicalInformationHandler {
 					Instance indexInstance = node.instances.get(i);
 					try
 					{
-						d = m_DistanceFunction.distance(inst, indexInstance);
+						d = squaredDistance(inst, indexInstance, min);
 
-						if (d < min){
+						if (i == 0 || d < min){
 							min = d;
 							idx = i;
 						}
@@ -432,12 +813,18 @@ TechnicalInformationHandler {
 						i++;
 					}
 				}
+				min = Math.sqrt(min);
 			}    
 
-			if  (node.nrKeys < m_NumClusters && node.nrKeys > 0 && node.instances.size() > 0) { 
-				ClusterEvaluation eval = voteKClustering(node.routes.get(idx));
-				if(IsClusterEvaluationValid(eval)) {
-					int nrClustersObtained = eval.getNumClusters();
+			if  (node.nrKeys < m_NumClusters && node.nrKeys > 0 && node.instances.size() > 0
+					&& isSplitCheckNeeded(node.routes.get(idx), Math.max(min, node.radix.get(idx)))) { 
+				boolean split = false;
+				long start = m_Metrics != null ? System.nanoTime() : 0;
+				int nodeSize = node.routes.get(idx).nrKeys;
+				int clusters = 0;
+				SplitAssignment eval = voteKClustering(node.routes.get(idx));
+				if(eval.isValid()) {
+					int nrClustersObtained = eval.numClusters;
 					if( (node.routes.get(idx).nrKeys > 0) && (nrClustersObtained > 1) ) {
 
 						if(nrClustersObtained + node.nrKeys - 1 <= m_NumClusters)
@@ -451,95 +838,641 @@ TechnicalInformationHandler {
 								node.routes.set(idx, splitOut.clusters.get(index));
 								node.instances.set(idx, splitOut.centers.get(index));
 								node.radix.set(idx, splitOut.radix.get(index));
+								node.parentDistances.set(idx, parentDistance(node, splitOut.centers.get(index)));
 							}
 							else
 							{
 								node.routes.add(idx + index, splitOut.clusters.get(index));
 								node.instances.add(idx + index, splitOut.centers.get(index));
 								node.radix.add(idx + index, splitOut.radix.get(index));
+								node.parentDistances.add(idx + index, parentDistance(node, splitOut.centers.get(index)));
 								node.nrKeys++;
 							}
+						
+						//the instance goes to the closest of the nodes obtained from the split
+						int first = idx;
+						countDistances(MTreeMetrics.PHASE_INSERT, splitOut.clusters.size());
+						//min is a true distance by now, the squared cutoff starts over
+						min = Double.MAX_VALUE;
+						for(int index = first; index < first + splitOut.clusters.size(); index++) {
+							d = squaredDistance(inst, node.instances.get(index), min);
+							if(index == first || d < min) {
+								min = d;
+								idx = index;
+							}
+						}
+						min = Math.sqrt(min);
+						split = splitOut.clusters.size() > 0;
+						clusters = splitOut.clusters.size();
 					}
 				}
+				if(m_Metrics != null)
+					m_Metrics.splitCheck(m_splitPolicy, nodeSize, clusters, System.nanoTime() - start);
+				if(!split)
+					recordSplitCheck(node.routes.get(idx), Math.max(min, node.radix.get(idx)));
 			}
+			
+			//keep the covering radius of the chosen node valid
+			if(min > node.radix.get(idx))
+				node.radix.set(idx, min);
+			
+			parentDistance = min;
+			parentNode = node;
+			parentIdx = idx;
 			node = node.routes.get(idx);
 		}
 
+		addFeature(node, inst);
 		node.instances.add(node.nrKeys, inst);
+		node.parentDistances.add(node.nrKeys, parentDistance);
 		node.nrKeys++;
+		if(m_LeafIndex != null)
+			m_LeafIndex.put(inst, node);
+		
+		if(m_CenterSelection == CENTER_INCREMENTAL && parentNode != null)
+			updateCenter(parentNode, parentIdx, node, inst);
 	}
-
-	public boolean IsClusterEvaluationValid(ClusterEvaluation eval)
-	{
-		if(eval.getNumClusters() > 0)
-		{
-			double[] assignments = eval.getClusterAssignments();
-			for(int i = 0; i < assignments.length - 1; i++)
-				if(assignments[i] != assignments[i+1])
-					return true;
+	
+	/**
+	 * Computes a distance and counts it in the metrics.
+	 * 
+	 * @param a the first instance
+	 * @param b the second instance
+	 * @param phase the MTreeMetrics phase the distance is counted in
+	 * @return the distance
+	 */
+	private double distance(Instance a, Instance b, int phase) {
+		if(m_Metrics != null)
+			m_Metrics.distances(phase, 1);
+		return distance(a, b);
+	}
+	
+	/**
+	 * Computes a distance with the kernel when there is one. Instances with
+	 * missing values are left to the distance function.
+	 * 
+	 * @param a the first instance
+	 * @param b the second instance
+	 * @return the distance
+	 */
+	private double distance(Instance a, Instance b) {
+		if(m_Kernel != null) {
+			double d = m_Kernel.distance(a, b);
+			if(!Double.isNaN(d))
+				return d;
 		}
-		return false;
+		return m_DistanceFunction.distance(a, b);
 	}
-	private Instances arrayInstanceToInstances(ArrayList<Instance> array) {
-
-		//initialize the instances using first 2 elements of train because
-		//Instances doesen't have a more convenient constructor in this situation
-
-		Instances instancesForSplit =  new Instances(train, 0, 0);
-		for(int i = 0; i < array.size(); i++)
-			instancesForSplit.add(array.get(i));
-
-		return instancesForSplit;
+	
+	/**
+	 * Computes a distance, giving up once it is larger than the cutoff. Unlike
+	 * DistanceFunction.distance(a, b, cutoff) the cutoff and the result are
+	 * true distances for every distance function.
+	 * 
+	 * @param a the first instance
+	 * @param b the second instance
+	 * @param cutoff the largest distance of interest
+	 * @return the distance, or Double.POSITIVE_INFINITY if it is larger than the cutoff
+	 */
+	private double distance(Instance a, Instance b, double cutoff) {
+		if(m_Kernel != null) {
+			double d = m_Kernel.distance(a, b, cutoff);
+			if(!Double.isNaN(d))
+				return d;
+		}
+		double d = m_DistanceFunction.distance(a, b);
+		return d > cutoff ? Double.POSITIVE_INFINITY : d;
 	}
-
-	private ArrayList<Node> getClustersFromVoteK(double[] clusterAssignments, Node parentNode, int nrClusters) {
-
-		ArrayList<Node> clusters = new ArrayList<Node>(nrClusters);
-
-		for(int i = 0; i < nrClusters; i++)
-			clusters.add(new Node());
-
-		for(int i = 0; i < parentNode.nrKeys; i++) {
-
-			int index = (int)clusterAssignments[i];
-			clusters.get(index).instances.add(parentNode.instances.get(i));
-
-			if (!parentNode.isLeaf)
-				clusters.get(index).routes.add(parentNode.routes.get(i));
-
-			clusters.get(index).nrKeys++;
+	
+	/**
+	 * Computes the squared distance, for the comparisons that only need the
+	 * order of the distances (closest or farthest instance). With the
+	 * euclidean distance this leaves out the square root, so callers should
+	 * only take the root of the value they keep.
+	 * 
+	 * @param a the first instance
+	 * @param b the second instance
+	 * @param cutoff the largest squared distance of interest
+	 * @return the squared distance, or Double.POSITIVE_INFINITY if it is larger than the cutoff
+	 */
+	private double squaredDistance(Instance a, Instance b, double cutoff) {
+		if(m_SquaredKernel != null) {
+			double d = m_SquaredKernel.distance(a, b, cutoff);
+			if(!Double.isNaN(d))
+				return d;
 		}
-
-		for(int i = 0; i < clusters.size(); i++)
-		{
-			if(clusters.get(i).nrKeys < 1)
-			{
-				clusters.remove(i);
-			}
+		//EuclideanDistance leaves out the root when it is given a cutoff
+		if(m_DistanceFunction instanceof EuclideanDistance)
+			return m_DistanceFunction.distance(a, b, cutoff);
+		double d = distance(a, b);
+		d *= d;
+		return d > cutoff ? Double.POSITIVE_INFINITY : d;
+	}
+	
+	private double squaredDistance(Instance a, Instance b) {
+		return squaredDistance(a, b, Double.POSITIVE_INFINITY);
+	}
+	
+	/**
+	 * Counts distances computed without the distance(a, b, phase) helper.
+	 */
+	private void countDistances(int phase, long count) {
+		if(m_Metrics != null)
+			m_Metrics.distances(phase, count);
+	}
+	
+	/**
+	 * Computes the distance from a new routing object of a node
+	 * to the parent routing object of that node.
+	 * 
+	 * @param node the node the routing object is added to
+	 * @param center the routing object
+	 * @return the distance, 0 if the node has no parent
+	 */
+	private double parentDistance(Node node, Instance center) {
+		if(node.parent == null)
+			return 0;
+		return distance(center, node.parent, MTreeMetrics.PHASE_SPLIT);
+	}
+	
+	/**
+	 * Makes the given center the parent routing object of a node and stores
+	 * the distance from each entry of the node to it.
+	 * 
+	 * @param node the node
+	 * @param center the new parent routing object
+	 * @return the covering radius of the node around the center
+	 */
+	private double setParent(Node node, Instance center) {
+		double radius = 0;
+		node.parent = center;
+		node.parentDistances = new ArrayList<Double>(node.nrKeys);
+		for(int i = 0; i < node.nrKeys; i++) {
+			double d = distance(center, node.instances.get(i), MTreeMetrics.PHASE_SPLIT);
+			node.parentDistances.add(d);
+			//the ball of a routing object must also hold its own ball
+			if(!node.isLeaf)
+				d += node.radix.get(i);
+			if(d > radius)
+				radius = d;
 		}
-		return clusters;
+		return radius;
 	}
-
+	
 	/**
-	 * This method evaluates a node of the MTree using
-	 * splitPolicy algorithm to decide if it can be split or not,
-	 * and in the first case which clusters will result
-	 * from the split operation. 
+	 * Decides if the split policy has to be evaluated again for a node or if
+	 * the last "no split" decision computed for it still holds. The decision
+	 * is computed again when the node grew by more than m_SplitCheckGrowth
+	 * or its covering radius by more than m_SplitCheckRadiusChange since then.
 	 * 
+	 * @param node the node which may be split
+	 * @param radius the covering radius of the node, 0 if it has no parent
+	 * @return true if voteKClustering has to be called for the node
 	 */
-	private ClusterEvaluation voteKClustering(Node node) {
-		numberOfIterations++;
+	private boolean isSplitCheckNeeded(Node node, double radius) {
+		if(node.splitCheckSize == 0)
+			return true;
+		if(node.nrKeys >= node.splitCheckSize * (1 + m_SplitCheckGrowth))
+			return true;
+		if(radius > node.splitCheckRadius * (1 + m_SplitCheckRadiusChange))
+			return true;
+		return false;
+	}
+	
+	/**
+	 * Remembers that the split policy decided not to split the node.
+	 * 
+	 * @param node the node that was evaluated
+	 * @param radius the covering radius of the node, 0 if it has no parent
+	 */
+	private void recordSplitCheck(Node node, double radius) {
+		node.splitCheckSize = node.nrKeys;
+		node.splitCheckRadius = radius;
+	}
 
-		VoteK clusterer = new VoteK();
-		int prediction = 0;
-		ClusterEvaluation eval = new ClusterEvaluation();
-		Instances nodeInstances = arrayInstanceToInstances(node.instances);
-		
-		try {
+	/**
+	 * Builds the tree top-down from the given instances. The routing objects
+	 * of a level are chosen once (the seeds for the root, a farthest first
+	 * traversal below it), every instance is routed to its closest one and
+	 * the resulting partitions are loaded recursively until they fit in a leaf.
+	 * Each level costs O(n * fanout) distance computations.
+	 * 
+	 * @param tree the tree to load
+	 * @param instances the instances to load
+	 */
+	public void bulkLoad(MTreeBean tree, Instances instances) {
+		
+		int[] order = insertionOrder(instances.numInstances());
+		ArrayList<Instance> points = new ArrayList<Instance>(instances.numInstances());
+		for (int i = 0; i < instances.numInstances(); i++)
+			points.add(instances.instance(order[i]));
+		
+		ArrayList<Instance> seeds = new ArrayList<Instance>();
+		if(testCentroids != null)
+		{
+			for(int i = 0; i < testCentroids.numInstances() && i < m_NumClusters; i++)
+				seeds.add(testCentroids.instance(i));
+		}
+		
+		Random random = new Random(m_SeedDefault);
+		Node root = bulkLoadNode(points, null, seeds, m_NumClusters, random, true,
+				m_executorPool != null && m_executionSlots > 1);
+		synchronized (tree) {
+			tree.root = root;
+		}
+		
+		//the subtrees may be loaded in parallel, so the leaves are indexed afterwards
+		if(m_LeafIndex != null)
+			indexLeafInstances(tree.root);
+	}
+	
+	/**
+	 * Adds the instances under the given node to m_LeafIndex.
+	 * 
+	 * @param node the root of the subtree
+	 */
+	private void indexLeafInstances(Node node) {
+		for(int i = 0; i < node.nrKeys; i++) {
+			if(node.isLeaf)
+				m_LeafIndex.put(node.instances.get(i), node);
+			else
+				indexLeafInstances(node.routes.get(i));
+		}
+	}
+	
+	/**
+	 * Maps every leaf of the tree to the root entry it is stored under.
+	 */
+	private void indexLeafClusters() {
+		m_LeafCluster = new IdentityHashMap<Node, Integer>();
+		m_RootIndex = null;
+		if(mTree.root.isLeaf)
+			return;
+		
+		for(int i = 0; i < mTree.root.nrKeys && i < mTree.root.routes.size(); i++)
+			indexLeafClusters(mTree.root.routes.get(i), i);
+	}
+	
+	private void indexLeafClusters(Node node, int cluster) {
+		if(node.isLeaf)
+		{
+			m_LeafCluster.put(node, cluster);
+			return;
+		}
+		for(int i = 0; i < node.nrKeys; i++)
+			indexLeafClusters(node.routes.get(i), cluster);
+	}
+	
+	/**
+	 * Gets the order the training rows are inserted in: shuffled with
+	 * m_SeedDefault the same way Instances.randomize does, unless the seed is 0.
+	 * 
+	 * @param n the number of rows
+	 * @return the row ids in insertion order
+	 */
+	private int[] insertionOrder(int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		
+		if(m_SeedDefault != 0)
+		{
+			Random random = new Random(m_SeedDefault);
+			for (int j = n - 1; j > 0; j--) {
+				int k = random.nextInt(j + 1);
+				int tmp = order[j];
+				order[j] = order[k];
+				order[k] = tmp;
+			}
+		}
+		return order;
+	}
+	
+	/**
+	 * Loads one node of the tree from the given points.
+	 * 
+	 * @param points the points to be stored under this node
+	 * @param distances distance from each point to the parent routing object
+	 *        of this node, null for the root
+	 * @param seeds routing objects to use for this node, if empty they are
+	 *        chosen by farthest first traversal
+	 * @param fanout the maximum number of routing objects of the node
+	 * @param random used to choose the first routing object
+	 * @param forceSplit split the node even if the points fit in a leaf
+	 * @param parallel load the children of the node on the execution pool
+	 * @return the loaded node
+	 */
+	private Node bulkLoadNode(ArrayList<Instance> points, ArrayList<Double> distances, ArrayList<Instance> seeds,
+			int fanout, Random random, boolean forceSplit, boolean parallel) {
+		
+		Node node = new Node();
+		int n = points.size();
+		
+		if((n <= m_BulkLoadLeafSize && !forceSplit) || n < 2)
+		{
+			node.instances.addAll(points);
+			for (int i = 0; i < n; i++)
+				node.parentDistances.add(distances == null ? 0.0 : distances.get(i));
+			node.nrKeys = n;
+			return node;
+		}
+		
+		//distance from each point to its closest routing object
+		double[] minDist = new double[n];
+		int[] closest = new int[n];
+		ArrayList<Instance> routingObjects = new ArrayList<Instance>(fanout);
+		ArrayList<Double> routingDistances = new ArrayList<Double>(fanout);
+		
+		for (int i = 0; i < n; i++)
+			minDist[i] = Double.MAX_VALUE;
+		
+		int next = seeds.size() > 0 ? -1 : random.nextInt(n);
+		while(routingObjects.size() < fanout)
+		{
+			Instance routingObject;
+			if(routingObjects.size() < seeds.size())
+				routingObject = seeds.get(routingObjects.size());
+			else if(seeds.size() > 0 && routingObjects.size() == seeds.size())
+				break;
+			else
+				routingObject = points.get(next);
+			
+			int index = routingObjects.size();
+			routingObjects.add(routingObject);
+			routingDistances.add(distances == null || seeds.size() > 0 ? 0.0 : distances.get(next));
+			
+			double maxDist = -1;
+			countDistances(MTreeMetrics.PHASE_BULK_LOAD, n);
+			for (int i = 0; i < n; i++) {
+				//squared, only the order matters until the radii are computed
+				double d = squaredDistance(points.get(i), routingObject);
+				if(d < minDist[i]) {
+					minDist[i] = d;
+					closest[i] = index;
+				}
+				if(minDist[i] > maxDist) {
+					maxDist = minDist[i];
+					next = i;
+				}
+			}
+			
+			//all the remaining points coincide with a routing object
+			if(seeds.size() == 0 && maxDist <= 0)
+				break;
+		}
+		
+		ArrayList<ArrayList<Instance>> partitions = new ArrayList<ArrayList<Instance>>(routingObjects.size());
+		ArrayList<ArrayList<Double>> partitionDistances = new ArrayList<ArrayList<Double>>(routingObjects.size());
+		double[] radix = new double[routingObjects.size()];
+		for (int j = 0; j < routingObjects.size(); j++) {
+			partitions.add(new ArrayList<Instance>());
+			partitionDistances.add(new ArrayList<Double>());
+		}
+		
+		for (int i = 0; i < n; i++) {
+			minDist[i] = Math.sqrt(minDist[i]);
+			partitions.get(closest[i]).add(points.get(i));
+			partitionDistances.get(closest[i]).add(minDist[i]);
+			if(minDist[i] > radix[closest[i]])
+				radix[closest[i]] = minDist[i];
+		}
+		
+		node.isLeaf = false;
+		final ArrayList<Instance> noSeeds = new ArrayList<Instance>();
+		final int childFanout = Math.max(2, fanout);
+		
+		//every subtree gets its own generator, so the tree is the same whatever
+		//the order the subtrees are loaded in
+		Node[] children = new Node[routingObjects.size()];
+		List<Future<Node>> results = new ArrayList<Future<Node>>();
+		for (int j = 0; j < routingObjects.size(); j++) {
+			final ArrayList<Instance> partition = partitions.get(j);
+			if(partition.isEmpty())
+				continue;
+			
+			//a partition that holds every point can not be split any further
+			if(partition.size() == n)
+			{
+				Node child = new Node();
+				child.instances.addAll(partition);
+				child.parentDistances.addAll(partitionDistances.get(j));
+				child.nrKeys = partition.size();
+				children[j] = child;
+				continue;
+			}
+			
+			final ArrayList<Double> childDistances = partitionDistances.get(j);
+			final Random childRandom = new Random(random.nextLong());
+			if(parallel)
+				results.add(m_executorPool.submit(new Callable<Node>() {
+					@Override
+					public Node call() {
+						return bulkLoadNode(partition, childDistances, noSeeds, childFanout, childRandom, false, false);
+					}
+				}));
+			else
+				children[j] = bulkLoadNode(partition, childDistances, noSeeds, childFanout, childRandom, false, false);
+		}
+		
+		int nextResult = 0;
+		for (int j = 0; j < routingObjects.size(); j++) {
+			if(partitions.get(j).isEmpty())
+				continue;
+			
+			Node child = children[j];
+			if(child == null) {
+				try {
+					child = results.get(nextResult++).get();
+				} catch (Exception e) {
+					throw new IllegalStateException("Can not load a subtree", e);
+				}
+			}
+			
+			child.parent = routingObjects.get(j);
+			node.routes.add(child);
+			node.instances.add(routingObjects.get(j));
+			node.radix.add(radix[j]);
+			node.parentDistances.add(routingDistances.get(j));
+			node.nrKeys++;
+		}
+		
+		return node;
+	}
+	
+	/**
+	 * Adds the instances stored in the leaves under the given node.
+	 * 
+	 * @param node the root of the subtree
+	 * @param result the list the instances are added to
+	 */
+	public void getLeafInstances(Node node, ArrayList<Instance> result) {
+		if(node.isLeaf)
+		{
+			for(int i = 0; i < node.nrKeys; i++)
+				result.add(node.instances.get(i));
+		}
+		else
+		{
+			for(int i = 0; i < node.nrKeys; i++)
+				getLeafInstances(node.routes.get(i), result);
+		}
+	}
+	
+	/**
+	 * Counts the instances stored in the leaves under the given node.
+	 * 
+	 * @param node the root of the subtree
+	 * @return the number of instances
+	 */
+	public int countLeafInstances(Node node) {
+		if(node.isLeaf)
+			return node.nrKeys;
+		
+		int count = 0;
+		for(int i = 0; i < node.nrKeys; i++)
+			count += countLeafInstances(node.routes.get(i));
+		return count;
+	}
+	
+	/**
+	 * Gets the cluster feature of a node. Nodes created by splits, bulk
+	 * loading or a snapshot get theirs from their entries the first time it
+	 * is needed, afterwards it is updated by the insertions and deletions.
+	 * Callers other than the insertions and deletions must hold the lock of
+	 * the tree.
+	 * 
+	 * @param node the node
+	 * @return the feature, null if the distance has no kernel
+	 */
+	private ClusterFeature feature(Node node) {
+		if(m_Kernel == null)
+			return null;
+		if(node.feature == null) {
+			ClusterFeature feature = new ClusterFeature(m_Kernel.numAttributes());
+			for(int i = 0; i < node.nrKeys; i++) {
+				if(node.isLeaf)
+					feature.add(node.instances.get(i), m_Kernel, 1);
+				else
+					feature.add(feature(node.routes.get(i)));
+			}
+			node.feature = feature;
+		}
+		return node.feature;
+	}
+	
+	/**
+	 * Adds an instance about to be stored under a node to its feature.
+	 */
+	private void addFeature(Node node, Instance inst) {
+		if(m_Kernel != null)
+			feature(node).add(inst, m_Kernel, 1);
+	}
+	
+	/**
+	 * Removes an instance from the features of the nodes that have one.
+	 */
+	private void removeFeature(List<Node> nodes, Instance inst) {
+		if(m_Kernel == null)
+			return;
+		for(Node node : nodes)
+			if(node.feature != null)
+				node.feature.add(inst, m_Kernel, -1);
+	}
+	
+	/**
+	 * Tells whether the errors of the clusters can be read from the features
+	 * of the root entries.
+	 */
+	private boolean hasFeatureErrors(MTreeBean tree) {
+		return m_Kernel != null && m_Kernel.type() == DistanceKernel.EUCLIDEAN && !tree.root.isLeaf;
+	}
+
+	public boolean IsClusterEvaluationValid(ClusterEvaluation eval)
+	{
+		if(eval.getNumClusters() > 0)
+		{
+			double[] assignments = eval.getClusterAssignments();
+			for(int i = 0; i < assignments.length - 1; i++)
+				if(assignments[i] != assignments[i+1])
+					return true;
+		}
+		return false;
+	}
+	/**
+	 * Gets the entries of a node as a read-only Instances, without copying
+	 * them. The view must not be used once the node changes.
+	 * 
+	 * @param node the node
+	 * @return the view
+	 */
+	private Instances nodeInstances(Node node) {
+		if(node.instances.size() == node.nrKeys)
+			return new InstancesView(train, node.instances);
+		return new InstancesView(train, node.instances.subList(0, node.nrKeys));
+	}
+
+	private ArrayList<Node> getClustersFromVoteK(int[] clusterAssignments, Node parentNode, int nrClusters) {
+
+		ArrayList<Node> clusters = new ArrayList<Node>(nrClusters);
+
+		for(int i = 0; i < nrClusters; i++) {
+			Node cluster = new Node();
+			cluster.isLeaf = parentNode.isLeaf;
+			clusters.add(cluster);
+		}
+
+		for(int i = 0; i < parentNode.nrKeys; i++) {
+
+			int index = clusterAssignments[i];
+			clusters.get(index).instances.add(parentNode.instances.get(i));
+			
+			if (parentNode.isLeaf && m_LeafIndex != null)
+				m_LeafIndex.put(parentNode.instances.get(i), clusters.get(index));
+
+			if (!parentNode.isLeaf) {
+				clusters.get(index).routes.add(parentNode.routes.get(i));
+				clusters.get(index).radix.add(parentNode.radix.get(i));
+			}
+
+			clusters.get(index).nrKeys++;
+		}
+
+		for(int i = 0; i < clusters.size(); i++)
+		{
+			if(clusters.get(i).nrKeys < 1)
+			{
+				clusters.remove(i);
+			}
+		}
+		return clusters;
+	}
+
+	/**
+	 * This method evaluates a node of the MTree using
+	 * splitPolicy algorithm to decide if it can be split or not,
+	 * and in the first case which clusters will result
+	 * from the split operation. 
+	 * 
+	 */
+	private SplitAssignment voteKClustering(Node node) {
+		numberOfIterations++;
+
+		VoteK clusterer = new VoteK();
+		int prediction = 0;
+		SplitAssignment split = new SplitAssignment();
+		ClusterEvaluation eval = new ClusterEvaluation();
+		Instances nodeInstances = nodeInstances(node);
+		int policy = splitPolicy();
+		
+		try {
 			if(nodeInstances.numInstances() > 0)
 			{
 				
 				clusterer.setNumClusters(m_NumClusters);
+				//the pool of the build is idle during the inserts. Without it (online
+				//inserts) the seeds run here rather than in a pool started per check
+				clusterer.setNumExecutionSlots(m_executorPool != null ? m_executionSlots : 1);
+				clusterer.setExecutorPool(m_executorPool);
 				clusterer.buildClusterer(nodeInstances);
 				prediction = clusterer.getPrediction();
 				
@@ -548,14 +1481,22 @@ TechnicalInformationHandler {
 					prediction = m_SplitNumber;
 				}
 				
-				if(m_splitPolicy == 0) 
+				if(policy >= NATIVE_KMEANS)
+				{
+					//a single cluster means no split, the rows are not clustered
+					if(prediction > 1)
+						split = nativeSplit(node, policy, prediction);
+					return split;
+				}
+				
+				if(policy == 0) 
 				{
 					 Canopy splitPolicyClusterer = new Canopy();
 					 splitPolicyClusterer.setNumClusters(prediction);
 					 splitPolicyClusterer.buildClusterer(nodeInstances);
 					 eval.setClusterer(splitPolicyClusterer);
 				}
-				if(m_splitPolicy == 1)
+				if(policy == 1)
 				{
 					CascadeSimpleKMeans splitPolicyClusterer = new CascadeSimpleKMeans();
 					splitPolicyClusterer.setMinNumClusters(prediction);
@@ -563,7 +1504,7 @@ TechnicalInformationHandler {
 					splitPolicyClusterer.buildClusterer(nodeInstances);
 					eval.setClusterer(splitPolicyClusterer);
 				}
-				if(m_splitPolicy == 2)
+				if(policy == 2)
 				{
 					Cobweb splitPolicyClusterer = new Cobweb();
 					splitPolicyClusterer.setAcuity(m_CobWebAcuity);
@@ -571,14 +1512,14 @@ TechnicalInformationHandler {
 					splitPolicyClusterer.buildClusterer(nodeInstances);
 					eval.setClusterer(splitPolicyClusterer);
 				}
-				if(m_splitPolicy == 3)
+				if(policy == 3)
 				{
 					FarthestFirst splitPolicyClusterer = new FarthestFirst();
 					splitPolicyClusterer.setNumClusters(prediction);
 					splitPolicyClusterer.buildClusterer(nodeInstances);
 					eval.setClusterer(splitPolicyClusterer);
 				}
-				if(m_splitPolicy == 4)
+				if(policy == 4)
 				{
 					HierarchicalClusterer splitPolicyClusterer = new HierarchicalClusterer();
 					splitPolicyClusterer.setNumClusters(prediction);
@@ -587,6 +1528,7 @@ TechnicalInformationHandler {
 				}
 				
 				eval.evaluateClusterer(nodeInstances);
+				split = new SplitAssignment(eval);
 			}
 		}                       
 		catch(java.lang.IllegalArgumentException e2)
@@ -596,22 +1538,28 @@ TechnicalInformationHandler {
 		catch (Exception e) {
 			e.printStackTrace();
 		}
-		return eval;
+		return split;
 	}
 
 	public SplitOutput splitNode(Node node, ClusterEvaluation eval) {
+		return splitNode(node, new SplitAssignment(eval));
+	}
+
+	/**
+	 * Splits a node into the clusters proposed by the split policy.
+	 * 
+	 * @param node the node to split
+	 * @param split the cluster of each entry of the node
+	 * @return the clusters with their centers and radii
+	 */
+	public SplitOutput splitNode(Node node, SplitAssignment split) {
 		SplitOutput splitOutput = new SplitOutput();
 		try{
-			splitOutput.clusters = getClustersFromVoteK(eval.getClusterAssignments(), node, eval.getNumClusters());
+			splitOutput.clusters = getClustersFromVoteK(split.assignments, node, split.numClusters);
 
 			if(splitOutput.clusters.size() > 0)
 			{
-				for(int i = 0; i < splitOutput.clusters.size(); i++) 
-				{
-					InstanceRadix instanceRadix = chooseCenter(splitOutput.clusters.get(i));
-					splitOutput.centers.add(instanceRadix.center);
-					splitOutput.radix.add(instanceRadix.radix);
-				}
+				chooseCenters(splitOutput);
 
 			}
 		} catch (Exception e) {
@@ -625,38 +1573,44 @@ TechnicalInformationHandler {
 
 		ClusterEvaluation eval = new ClusterEvaluation();
 		                            
+		int policy = splitPolicy();
+		if(policy >= NATIVE_KMEANS)
+		{
+			numberOfIterations++;
+			return splitNode(node, nativeSplit(node, policy, nrOfClusters));
+		}
+		
 		SplitOutput splitOutput = new SplitOutput();
-		//obtain the instances as an Instances object from the array of Instances.
-		//this operation is needed for the buildClusterer method
-		Instances nodeInstances = arrayInstanceToInstances(node.instances);
+		//the buildClusterer methods need the entries as an Instances object
+		Instances nodeInstances = nodeInstances(node);
 		try{
 			numberOfIterations++;
 			
-			if(m_splitPolicy == 0) 
+			if(policy == 0) 
 			{
 				 Canopy splitPolicyClusterer = new Canopy();
 				 splitPolicyClusterer.buildClusterer(nodeInstances);
 				 eval.setClusterer(splitPolicyClusterer);
 			}
-			if(m_splitPolicy == 1)
+			if(policy == 1)
 			{
 				CascadeSimpleKMeans splitPolicyClusterer = new CascadeSimpleKMeans();
 				splitPolicyClusterer.buildClusterer(nodeInstances);
 				eval.setClusterer(splitPolicyClusterer);
 			}
-			if(m_splitPolicy == 2)
+			if(policy == 2)
 			{
 				Cobweb splitPolicyClusterer = new Cobweb();
 				splitPolicyClusterer.buildClusterer(nodeInstances);
 				eval.setClusterer(splitPolicyClusterer);
 			}
-			if(m_splitPolicy == 3)
+			if(policy == 3)
 			{
 				FarthestFirst splitPolicyClusterer = new FarthestFirst();
 				splitPolicyClusterer.buildClusterer(nodeInstances);
 				eval.setClusterer(splitPolicyClusterer);
 			}
-			if(m_splitPolicy == 4)
+			if(policy == 4)
 			{
 				HierarchicalClusterer splitPolicyClusterer = new HierarchicalClusterer();
 				splitPolicyClusterer.buildClusterer(nodeInstances);
@@ -665,13 +1619,10 @@ TechnicalInformationHandler {
 
 			eval.evaluateClusterer(nodeInstances);
 
-			splitOutput.clusters = getClustersFromVoteK(eval.getClusterAssignments(), node, eval.getNumClusters());
+			SplitAssignment split = new SplitAssignment(eval);
+			splitOutput.clusters = getClustersFromVoteK(split.assignments, node, split.numClusters);
 
-			for(int i = 0; i < splitOutput.clusters.size(); i++) {
-				InstanceRadix instanceRadix = chooseCenter(splitOutput.clusters.get(i));
-				splitOutput.centers.add(instanceRadix.center);
-				splitOutput.radix.add(instanceRadix.radix);
-			}
+			chooseCenters(splitOutput);
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -679,77 +1630,341 @@ TechnicalInformationHandler {
 		return splitOutput;
 	}
 
-	public InstanceRadix chooseCenter(Node node) {
-		ArrayList<Double> radix = new ArrayList<Double>();
-
-		for (int i = 0; i < node.instances.size(); i++) 
-			radix.add(0.0);
-
-		//the biggest distance to the others for each instance 
-		for (int i = 0; i < node.instances.size(); i++){
-			for (int j = 0; j < node.instances.size(); j++){
-				if (m_DistanceFunction.distance(node.instances.get(i),node.instances.get(j)) > radix.get(i))
-					radix.set(i, m_DistanceFunction.distance(node.instances.get(i),node.instances.get(j))) ;
+	/**
+	 * Gets the split policy to use. The native policies need the rows of the
+	 * nodes to be normalized by a kernel, without one they fall back to the
+	 * weka clusterer doing the same.
+	 * 
+	 * @return the split policy
+	 */
+	private int splitPolicy() {
+		if(m_RowKernel != null || m_splitPolicy < NATIVE_KMEANS)
+			return m_splitPolicy;
+		if(m_splitPolicy == NATIVE_KMEANS)
+			return CASCADE_KMEANS;
+		if(m_splitPolicy == NATIVE_FARTHEST_FIRST)
+			return FARTHEST_FIRST;
+		return CANOPY;
+	}
+	
+	/**
+	 * Splits the entries of a node with SplitEngine, on a block holding their
+	 * normalized values.
+	 * 
+	 * @param node the node
+	 * @param policy one of the native split policies
+	 * @param nrOfClusters the number of clusters
+	 * @return the cluster of each entry
+	 */
+	private SplitAssignment nativeSplit(Node node, int policy, int nrOfClusters) {
+		PointStore points = PointStore.forDistance(train, m_DistanceFunction, node.nrKeys);
+		for(int i = 0; i < node.nrKeys; i++)
+			points.add(node.instances.get(i));
+		
+		//seeded per split, the result does not depend on the order of the splits
+		Random random = new Random(m_SeedDefault);
+		int[] assignments;
+		if(policy == NATIVE_KMEANS)
+			assignments = SplitEngine.kMeans(points, m_RowKernel, nrOfClusters, NATIVE_KMEANS_ITERATIONS, random);
+		else if(policy == NATIVE_FARTHEST_FIRST)
+			assignments = SplitEngine.farthestFirst(points, m_RowKernel, nrOfClusters, random);
+		else
+			assignments = SplitEngine.canopy(points, m_RowKernel, nrOfClusters, random);
+		return new SplitAssignment(assignments);
+	}
+	
+	/**
+	 * Chooses the centers of the clusters obtained from a split and makes them
+	 * the parent routing objects of the clusters. With more than one
+	 * execution slot the clusters are handled in parallel.
+	 * 
+	 * @param splitOutput the clusters, the centers and radii are added to it
+	 * @throws Exception if a parallel task fails
+	 */
+	private void chooseCenters(SplitOutput splitOutput) throws Exception {
+		final ArrayList<Node> clusters = splitOutput.clusters;
+		
+		if(m_executorPool == null || m_executionSlots < 2 || clusters.size() < 2) {
+			for(int i = 0; i < clusters.size(); i++) {
+				InstanceRadix instanceRadix = chooseCenter(clusters.get(i));
+				splitOutput.centers.add(instanceRadix.center);
+				splitOutput.radix.add(setParent(clusters.get(i), instanceRadix.center));
 			}
+			return;
 		}
 		
+		final Instance[] centers = new Instance[clusters.size()];
+		List<Future<Double>> results = new ArrayList<Future<Double>>(clusters.size());
+		for(int i = 0; i < clusters.size(); i++) {
+			final int index = i;
+			results.add(m_executorPool.submit(new Callable<Double>() {
+				@Override
+				public Double call() {
+					//already running on the pool, the node is handled by this thread
+					InstanceRadix instanceRadix = chooseCenter(clusters.get(index), false);
+					centers[index] = instanceRadix.center;
+					return setParent(clusters.get(index), instanceRadix.center);
+				}
+			}));
+		}
+		for(int i = 0; i < clusters.size(); i++) {
+			double radix = results.get(i).get();
+			splitOutput.centers.add(centers[i]);
+			splitOutput.radix.add(radix);
+		}
+	}
+	
+	/**
+	 * Chooses the routing object of a node: the entry with the smallest
+	 * eccentricity (largest distance to the other entries), computed the way
+	 * m_CenterSelection says.
+	 * 
+	 * @param node the node
+	 * @return the center and its eccentricity
+	 */
+	public InstanceRadix chooseCenter(Node node) {
+		return chooseCenter(node, true);
+	}
+	
+	/**
+	 * Chooses the routing object of a node.
+	 * 
+	 * @param node the node
+	 * @param parallel false when called from a task of the execution pool
+	 * @return the center and its eccentricity
+	 */
+	private InstanceRadix chooseCenter(Node node, boolean parallel) {
+		if(m_CenterSelection == CENTER_SAMPLED && node.nrKeys > m_CenterSampleSize)
+			return chooseCenterSampled(node);
+
+		double[] eccentricities = computeEccentricities(node, parallel);
 		
 		int indexMinRadix = 0;
-
-		if(radix.size() > 0)
-		{
-			//minimum from the computed distances
-			Double minRadix = radix.get(0);
-
-			for (int i = 0; i < node.nrKeys; i++){
-				if (radix.get(i) < minRadix) {
-					minRadix = radix.get(i);
-					indexMinRadix = i;
-				}
-			}
+		for (int i = 1; i < eccentricities.length; i++)
+			if (eccentricities[i] < eccentricities[indexMinRadix])
+				indexMinRadix = i;
+		
+		//kept so that the center can be updated when points are appended to the node
+		if(m_CenterSelection == CENTER_INCREMENTAL) {
+			node.eccentricities = eccentricities;
+			node.eccentricityCount = eccentricities.length;
 		}
 
 		InstanceRadix instanceRadix = new InstanceRadix();
 		instanceRadix.center = node.instances.get(indexMinRadix);
-		instanceRadix.radix = radix.get(indexMinRadix);
+		instanceRadix.radix = eccentricities.length > 0 ? eccentricities[indexMinRadix] : 0;
 
 		return instanceRadix;
-	}	
-
-	public void m_Tree_Display(MTreeBean tree, BufferedWriter bw) {
-		try {						
-			m_Node_Print(tree.root,0, bw);
-			bw.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}				
 	}
-
-	public void m_Node_Print(Node node, int level, BufferedWriter writingFile) throws IOException{
-		for (int i=0; i < node.nrKeys; i++){
-			for (int j=0; j < level; j++){
-				writingFile.write("  ");
-			}
+	
+	/**
+	 * Computes the largest distance from each entry of a node to the other
+	 * entries. Every pair is evaluated once. Big nodes are split into
+	 * m_executionSlots interleaved groups of rows computed in parallel.
+	 * 
+	 * @param node the node
+	 * @param parallel false when called from a task of the execution pool
+	 * @return the eccentricity of each of the nrKeys entries
+	 */
+	private double[] computeEccentricities(final Node node, boolean parallel) {
+		final int n = node.nrKeys;
+		double[] eccentricities = new double[n];
+		
+		if(!parallel || m_executorPool == null || m_executionSlots < 2 || n < MIN_PARALLEL_CENTER_SIZE) {
+			eccentricityRows(node, 0, 1, eccentricities);
+			return squareRoots(eccentricities);
 		}
-	}
-
-	public double getSumOfSquaredErrors(MTreeBean mTree) {
-		double sse = 0;
-		double distance;
-
+		
+		try {
+			List<Future<double[]>> results = new ArrayList<Future<double[]>>();
+			for (int t = 0; t < m_executionSlots; t++) {
+				final int first = t;
+				results.add(m_executorPool.submit(new Callable<double[]>() {
+					@Override
+					public double[] call() {
+						double[] local = new double[n];
+						eccentricityRows(node, first, m_executionSlots, local);
+						return local;
+					}
+				}));
+			}
+			for (Future<double[]> result : results) {
+				double[] local = result.get();
+				for (int i = 0; i < n; i++)
+					if (local[i] > eccentricities[i])
+						eccentricities[i] = local[i];
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			eccentricities = new double[n];
+			eccentricityRows(node, 0, 1, eccentricities);
+		}
+		return squareRoots(eccentricities);
+	}
+	
+	private static double[] squareRoots(double[] values) {
+		for (int i = 0; i < values.length; i++)
+			values[i] = Math.sqrt(values[i]);
+		return values;
+	}
+	
+	/**
+	 * Updates the eccentricities with the squared distances from the rows
+	 * first, first + step, ... to the entries that follow them.
+	 */
+	private void eccentricityRows(Node node, int first, int step, double[] eccentricities) {
+		int n = node.nrKeys;
+		for (int i = first; i < n; i += step) {
+			countDistances(MTreeMetrics.PHASE_CENTER, n - i - 1);
+			Instance a = node.instances.get(i);
+			for (int j = i + 1; j < n; j++) {
+				double d = squaredDistance(a, node.instances.get(j));
+				if (d > eccentricities[i])
+					eccentricities[i] = d;
+				if (d > eccentricities[j])
+					eccentricities[j] = d;
+			}
+		}
+	}
+	
+	/**
+	 * Chooses the center among m_CenterSampleSize random entries of a node,
+	 * evaluating each candidate against all entries, so the cost is
+	 * O(m_CenterSampleSize * n) instead of O(n^2). The radius of any entry is
+	 * at most twice the optimal one (triangle inequality through the optimal
+	 * center), so the returned radius is exact for the chosen center and at
+	 * most 2 * the radius of the exact medoid.
+	 * 
+	 * @param node the node
+	 * @return the center and its eccentricity
+	 */
+	private InstanceRadix chooseCenterSampled(Node node) {
+		int n = node.nrKeys;
+		//seeded by the node size so the choice doesn't depend on the order of the splits
+		Random random = new Random(m_SeedDefault * 31L + n);
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		
+		int best = 0;
+		double bestRadix = Double.MAX_VALUE;
+		for (int s = 0; s < m_CenterSampleSize; s++) {
+			int pick = s + random.nextInt(n - s);
+			int candidate = order[pick];
+			order[pick] = order[s];
+			order[s] = candidate;
+			
+			Instance center = node.instances.get(candidate);
+			//squared radii, the root is taken once for the chosen center
+			double radix = 0;
+			for (int j = 0; j < n && radix < bestRadix; j++) {
+				countDistances(MTreeMetrics.PHASE_CENTER, 1);
+				double d = squaredDistance(center, node.instances.get(j));
+				if (d > radix)
+					radix = d;
+			}
+			//abandoned candidates have radix >= bestRadix
+			if (radix < bestRadix) {
+				bestRadix = radix;
+				best = candidate;
+			}
+		}
+		
+		InstanceRadix instanceRadix = new InstanceRadix();
+		instanceRadix.center = node.instances.get(best);
+		instanceRadix.radix = Math.sqrt(bestRadix);
+		return instanceRadix;
+	}
+	
+	/**
+	 * Updates the routing object of a leaf after inst was appended to it, using
+	 * the eccentricities kept by chooseCenter. Only the distances from inst to
+	 * the other entries are computed, unless the leaf has no valid
+	 * eccentricities yet.
+	 * 
+	 * @param parentNode the node holding the routing object of the leaf
+	 * @param idx the index of the routing object in parentNode
+	 * @param leaf the leaf inst was appended to
+	 * @param inst the new entry, the last one of the leaf
+	 */
+	private void updateCenter(Node parentNode, int idx, Node leaf, Instance inst) {
+		int n = leaf.nrKeys;
+		double[] eccentricities = leaf.eccentricities;
+		if(eccentricities == null || leaf.eccentricityCount != n - 1) {
+			eccentricities = computeEccentricities(leaf, true);
+		} else {
+			if(eccentricities.length < n)
+				eccentricities = Arrays.copyOf(eccentricities, Math.max(n, 2 * eccentricities.length));
+			double radix = 0;
+			for (int j = 0; j < n - 1; j++) {
+				double d = distance(inst, leaf.instances.get(j), MTreeMetrics.PHASE_CENTER);
+				if (d > eccentricities[j])
+					eccentricities[j] = d;
+				if (d > radix)
+					radix = d;
+			}
+			eccentricities[n - 1] = radix;
+		}
+		leaf.eccentricities = eccentricities;
+		leaf.eccentricityCount = n;
+		
+		int best = 0;
+		for (int i = 1; i < n; i++)
+			if (eccentricities[i] < eccentricities[best])
+				best = i;
+		
+		Instance center = leaf.instances.get(best);
+		if(center != leaf.parent) {
+			parentNode.instances.set(idx, center);
+			parentNode.parentDistances.set(idx, parentDistance(parentNode, center));
+			setParent(leaf, center);
+		}
+		parentNode.radix.set(idx, eccentricities[best]);
+	}	
+
+	public void m_Tree_Display(MTreeBean tree, BufferedWriter bw) {
+		try {						
+			m_Node_Print(tree.root,0, bw);
+			bw.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}				
+	}
+
+	public void m_Node_Print(Node node, int level, BufferedWriter writingFile) throws IOException{
+		for (int i=0; i < node.nrKeys; i++){
+			for (int j=0; j < level; j++){
+				writingFile.write("  ");
+			}
+		}
+	}
+
+	public double getSumOfSquaredErrors(MTreeBean mTree) {
+		double sse = 0;
+		
+		synchronized (mTree) {
+			if(hasFeatureErrors(mTree))
+			{
+				for(int k = 0; k < mTree.root.nrKeys; k++)
+					sse += feature(mTree.root.routes.get(k)).squaredError(mTree.root.instances.get(k), m_Kernel);
+				return sse;
+			}
+		}
+
 		int index1 = 0;
 		for(int k = 0; k < mTree.root.nrKeys; k++)
 		{
 			Instance centroid = mTree.root.instances.get(k);
 			if(mTree.root.routes.size() > 0)
 			{
-				Node node = mTree.root.routes.get(k);
+				ArrayList<Instance> clusterInstances = new ArrayList<Instance>();
+				getLeafInstances(mTree.root.routes.get(k), clusterInstances);
 
-				for(int i = 0; i < node.nrKeys; i++) {
-					distance = m_DistanceFunction.distance(centroid, node.instances.get(i));
+				for(int i = 0; i < clusterInstances.size(); i++) {
 					if (m_DistanceFunction instanceof EuclideanDistance) 
 					{
-						sse += (distance * distance);
+						countDistances(MTreeMetrics.PHASE_ASSIGNMENT, 1);
+						sse += squaredDistance(centroid, clusterInstances.get(i));
 						index1++;
 					}
 
@@ -767,37 +1982,298 @@ TechnicalInformationHandler {
 		return m_ClusterCentroids;
 	}
 
+	/**
+	 * Gets the number of instances under each root entry. It is read from the
+	 * cluster features between two insertions, so it can be called while the
+	 * tree is being built.
+	 *
+	 * @return the sizes of the clusters
+	 */
+	public int[] getClusterSizes() {
+		MTreeBean tree = mTree;
+		synchronized (tree) {
+			Node root = tree.root;
+			if(m_Kernel == null || root.isLeaf)
+				return m_ClusterSizes;
+
+			int[] sizes = new int[root.nrKeys];
+			for(int i = 0; i < root.nrKeys; i++)
+				sizes[i] = feature(root.routes.get(i)).count;
+			return sizes;
+		}
+	}
+
+	/**
+	 * Gets the mean of the instances under each root entry, from the cluster
+	 * features.
+	 *
+	 * @return the means, null if the distance has no kernel
+	 */
+	public Instances getClusterMeans() {
+		MTreeBean tree = mTree;
+		synchronized (tree) {
+			Node root = tree.root;
+			if(m_Kernel == null || root.isLeaf)
+				return null;
+
+			Instances means = new Instances(train, root.nrKeys);
+			for(int i = 0; i < root.nrKeys; i++) {
+				ClusterFeature feature = feature(root.routes.get(i));
+				double[] values = new double[feature.linearSum.length];
+				for(int j = 0; j < values.length; j++)
+					values[j] = m_Kernel.denormalize(j, feature.count == 0 ? 0 : feature.linearSum[j] / feature.count);
+				means.add(new DenseInstance(1.0, values));
+			}
+			return means;
+		}
+	}
+
+	/**
+	 * Gets the within cluster scatter of each root entry: the sum of the
+	 * squared normalized euclidean distances from its instances to their
+	 * mean, from the cluster features.
+	 *
+	 * @return the scatter of the clusters, null if the distance has no kernel
+	 */
+	public double[] getClusterScatter() {
+		MTreeBean tree = mTree;
+		synchronized (tree) {
+			Node root = tree.root;
+			if(m_Kernel == null || root.isLeaf)
+				return null;
+
+			double[] scatter = new double[root.nrKeys];
+			for(int i = 0; i < root.nrKeys; i++)
+				scatter[i] = feature(root.routes.get(i)).scatter();
+			return scatter;
+		}
+	}
+
 	@Override
 	public void buildClusterer(Instances data) throws Exception {
 
-		mTree = new MTreeBean();
 		// can clusterer handle the data?
 		getCapabilities().testWithFail(data);
-		m_ClusterCentroids = new Instances(data, 0 , 1);
-		m_ClusterCentroids.delete();
 		
+		//replace missing values
+		ReplaceMissingValues filter = new ReplaceMissingValues();
+		filter.setInputFormat(data);
+		Instances filtered = Filter.useFilter(data, filter);
+		buildClusterer(data, filtered, filter, filtered);
+	}
+	
+	/**
+	 * Builds the tree from rows whose missing values are already replaced.
+	 * The rows are only read, so several trees can be built from them at the
+	 * same time (see MTreeEnsemble).
+	 * 
+	 * @param data the instances of the caller, recognized by clusterInstance.
+	 *          null if they are not kept
+	 * @param filtered the rows of data with their missing values replaced
+	 * @param filter the filter that replaced them
+	 * @param ranges the rows the ranges of the distance are computed from
+	 * @throws Exception if the clusterer can not be built
+	 */
+	void buildClusterer(Instances data, Instances filtered, ReplaceMissingValues filter,
+			Instances ranges) throws Exception {
+		
+		mTree = new MTreeBean();
+		m_ClusterCentroids = new Instances(filtered, 0);
 		numberOfIterations = 0;
 		
-		//replace missing values
+		m_RowIndex = null;
+		if(data != null)
+		{
+			m_RowIndex = new IdentityHashMap<Instance, Integer>(data.numInstances());
+			for (int i = 0; i < data.numInstances(); i++)
+				m_RowIndex.put(data.instance(i), i);
+		}
+		
+		//the tree stores the rows of filtered, so their clusters can be read from it.
+		//the rows are shuffled through insertionOrder
+		m_ReplaceMissingFilter = filter;
+		this.train = filtered;
+		buildTree(ranges);
+	}
+	
+	/**
+	 * Builds the tree from a dataset read one row at a time, so only the rows
+	 * with their missing values replaced are kept in memory. A first pass over
+	 * the file computes the means and the ranges of the attributes.
+	 * 
+	 * @param arff the ARFF file
+	 * @throws Exception if the file can not be read or the clusterer can not
+	 *           be built
+	 */
+	public void buildClusterer(File arff) throws Exception {
+		buildClusterer(arff, null, null, null);
+	}
+	
+	/**
+	 * Builds the tree from a dataset read one row at a time, using the given
+	 * statistics instead of a first pass over the file.
+	 * 
+	 * @param arff the ARFF file
+	 * @param means the value missing values are replaced with: the mean of
+	 *          numeric attributes and the index of the mode of nominal ones.
+	 *          null to compute the statistics in a first pass
+	 * @param min the minimum of each attribute
+	 * @param max the maximum of each attribute
+	 * @throws Exception if the file can not be read or the clusterer can not
+	 *           be built
+	 */
+	public void buildClusterer(File arff, double[] means, double[] min, double[] max) throws Exception {
+		
+		ArffLoader loader = new ArffLoader();
+		loader.setFile(arff);
+		Instances header = loader.getStructure();
+		//the rows are not read yet, only the attributes can be tested
+		Capabilities capabilities = getCapabilities();
+		capabilities.setMinimumNumberInstances(0);
+		capabilities.testWithFail(header);
+		int n = header.numAttributes();
+		int numRows = 0;
+		
+		if(means == null)
+		{
+			means = new double[n];
+			min = new double[n];
+			max = new double[n];
+			numRows = streamStatistics(loader, header, means, min, max);
+			loader = new ArffLoader();
+			loader.setFile(arff);
+			header = loader.getStructure();
+		}
+		else if(means.length != n || min == null || min.length != n || max == null || max.length != n)
+			throw new Exception("The statistics must have one value per attribute");
+		
+		mTree = new MTreeBean();
+		m_ClusterCentroids = new Instances(header, 0);
+		numberOfIterations = 0;
+		m_RowIndex = null;
+		
+		//the rows are kept once, with their missing values replaced
+		Instances data = new Instances(header, numRows);
+		Instance inst;
+		while((inst = loader.getNextInstance(header)) != null)
+		{
+			for(int i = 0; i < n; i++)
+				if(inst.isMissing(i))
+					inst.setValue(i, means[i]);
+			data.add(inst);
+		}
+		if(data.numInstances() == 0)
+			throw new Exception("No training instances in " + arff);
+		
+		//the filter and the ranges are set up from single rows holding the statistics,
+		//as loadSnapshot does
+		Instances meansData = new Instances(header, 1);
+		meansData.add(new DenseInstance(1.0, means));
 		m_ReplaceMissingFilter = new ReplaceMissingValues();
-		m_ReplaceMissingFilter.setInputFormat(data);
-		this.train = Filter.useFilter(data, m_ReplaceMissingFilter);
-		data = Filter.useFilter(data, m_ReplaceMissingFilter);
-		//this.train = data;
+		m_ReplaceMissingFilter.setInputFormat(header);
+		Filter.useFilter(meansData, m_ReplaceMissingFilter);
 		
-		if(m_SeedDefault != 0)
+		Instances bounds = new Instances(header, 2);
+		bounds.add(new DenseInstance(1.0, min));
+		bounds.add(new DenseInstance(1.0, max));
+		
+		this.train = data;
+		buildTree(bounds);
+	}
+	
+	/**
+	 * Computes the statistics of the rows of an ARFF file the way
+	 * ReplaceMissingValues and the distance functions do: weighted means and
+	 * modes, and the ranges of the rows once their missing values are replaced.
+	 * 
+	 * @return the number of rows
+	 */
+	private int streamStatistics(ArffLoader loader, Instances header, double[] means,
+			double[] min, double[] max) throws Exception {
+		
+		int n = header.numAttributes();
+		double[] weights = new double[n];
+		double[][] counts = new double[n][];
+		for(int i = 0; i < n; i++)
+		{
+			if(header.attribute(i).isNominal())
+				counts[i] = new double[header.attribute(i).numValues()];
+			min[i] = Double.POSITIVE_INFINITY;
+			max[i] = Double.NEGATIVE_INFINITY;
+		}
+		
+		int numRows = 0;
+		Instance inst;
+		while((inst = loader.getNextInstance(header)) != null)
+		{
+			numRows++;
+			for(int i = 0; i < n; i++)
+			{
+				if(inst.isMissing(i))
+					continue;
+				double value = inst.value(i);
+				if(counts[i] != null)
+					counts[i][(int) value] += inst.weight();
+				else
+				{
+					means[i] += value * inst.weight();
+					weights[i] += inst.weight();
+				}
+				if(value < min[i])
+					min[i] = value;
+				if(value > max[i])
+					max[i] = value;
+			}
+		}
+		
+		for(int i = 0; i < n; i++)
 		{
-			this.train.randomize(new Random(m_SeedDefault));
+			if(counts[i] != null)
+				means[i] = Utils.maxIndex(counts[i]);
+			else if(weights[i] > 0)
+				means[i] /= weights[i];
+			//the missing values are replaced by the means, which are inside the ranges
+			//unless an attribute has no value at all
+			min[i] = Math.min(min[i], means[i]);
+			max[i] = Math.max(max[i], means[i]);
 		}
+		return numRows;
+	}
+	
+	/**
+	 * Builds the tree from train, whose missing values are already replaced.
+	 * 
+	 * @param ranges the rows the ranges of the distance are computed from
+	 */
+	private void buildTree(Instances ranges) throws Exception {
+		
+		Instances data = train;
+		m_SeedRows = null;
+		m_LeafIndex = new IdentityHashMap<Instance, Node>(train.numInstances());
+		m_TrainRowIndex = new IdentityHashMap<Instance, Integer>(train.numInstances());
+		for (int i = 0; i < train.numInstances(); i++)
+			m_TrainRowIndex.put(train.instance(i), i);
+		m_TrainRows = null;
 		
 		
 		m_DistanceFunction = setDistance();
 		//m_DistanceFunction = new ManhattanDistance();
-		m_DistanceFunction.setInstances(train);
+		m_DistanceFunction.setInstances(ranges);
+		//the ranges are computed lazily, compute them now so the distance can be shared by threads
+		if(m_DistanceFunction instanceof NormalizableDistance)
+			((NormalizableDistance) m_DistanceFunction).getRanges();
+		m_Kernel = DistanceKernel.forDistance(m_DistanceFunction, train);
+		m_SquaredKernel = m_Kernel == null ? null : m_Kernel.squared();
+		m_RowKernel = m_Kernel == null ? null : m_Kernel.rows();
+		
+		if(m_executionSlots > 1)
+			startExecutorPool();
 		
 		if(m_NumClusters == -1)
 		{
 			VoteK voteKClusterer = new VoteK();
+			voteKClusterer.setNumExecutionSlots(m_executionSlots);
+			voteKClusterer.setExecutorPool(m_executorPool);
 			voteKClusterer.buildClusterer(data);
 			m_NumClusters = voteKClusterer.getPrediction();
 		}
@@ -809,35 +2285,63 @@ TechnicalInformationHandler {
 			seedOptimisation(data);		
 		}
 		System.out.println("Insert start");
-		if(testCentroids != null)
+		if(m_BulkLoad)
+		{
+			bulkLoad(mTree, train);
+		}
+		else
 		{
-			for(int i = 0; i < testCentroids.numInstances(); i ++)
+			//the seeds are rows of train, they are inserted first and only once
+			boolean[] inserted = new boolean[train.numInstances()];
+			if(m_SeedRows != null)
 			{
-				mTreeInsert(mTree, testCentroids.instance(i));
+				for(int i = 0; i < m_SeedRows.length; i ++)
+				{
+					if(!inserted[m_SeedRows[i]])
+					{
+						inserted[m_SeedRows[i]] = true;
+						mTreeInsert(mTree, train.instance(m_SeedRows[i]));
+					}
+				}
+			}
+			
+			int[] order = insertionOrder(train.numInstances());
+			for (int i = 0; i < train.numInstances(); i++){
+				if(!inserted[order[i]])
+					mTreeInsert(mTree, train.instance(order[i]));
 			}
 		}
 		
-		for (int i = 0; i < train.numInstances(); i++){
-			mTreeInsert(mTree, train.instance(i));
-		}
+		indexLeafClusters();
 
 		System.out.println("Insert end");
 
 		int[] clusterAssignments = new int[data.numInstances()];
 		m_squaredErrors = new double[mTree.root.instances.size()];
-		// calculate errors
+		// calculate errors, from the cluster features when they give them
+		boolean featureErrors = hasFeatureErrors(mTree);
 
 		for (int i = 0; i < data.numInstances(); i++) {
-			clusterAssignments[i] = clusterProcessedInstance(data.instance(i), true, true);
+			clusterAssignments[i] = clusterProcessedInstance(data.instance(i), !featureErrors, true);
 		}
+		m_RowClusters = clusterAssignments;
 		m_ClusterSizes = new int[mTree.root.nrKeys];
 
 		for(int i = 0; i <  mTree.root.nrKeys; i++) 
 		{
 			m_ClusterCentroids.add(mTree.root.instances.get(i));
-			if(mTree.root.routes.size() > 0)
+			if(featureErrors)
+			{
+				ClusterFeature feature;
+				synchronized (mTree) {
+					feature = feature(mTree.root.routes.get(i));
+				}
+				m_squaredErrors[i] = feature.squaredError(mTree.root.instances.get(i), m_Kernel);
+				m_ClusterSizes[i] = feature.count;
+			}
+			else if(mTree.root.routes.size() > 0)
 			{
-				m_ClusterSizes[i] = (mTree.root.routes.get(i).nrKeys);
+				m_ClusterSizes[i] = countLeafInstances(mTree.root.routes.get(i));
 			}
 		}
 
@@ -846,6 +2350,11 @@ TechnicalInformationHandler {
 
 		m_NumClusters = mTree.root.nrKeys;
 		stopTime = System.currentTimeMillis();
+		
+		if(m_executorPool != null) {
+			m_executorPool.shutdown();
+			m_executorPool = null;
+		}
 	}
 
 	/**
@@ -862,7 +2371,7 @@ TechnicalInformationHandler {
 		for(int i = 0; i <  mTree.root.nrKeys; i++) {
 			//m_ClusterCentroids.add(mTree.root.instances.get(i));//set(i, mTree.root.instances.get(i));
 			if(mTree.root.routes.size() > 0) {
-				m_ClusterSizes[i] = (mTree.root.routes.get(i).nrKeys);
+				m_ClusterSizes[i] = countLeafInstances(mTree.root.routes.get(i));
 
 				temp.append(mTree.root.instances.get(i) + " "); //mTree.root.routes.get(i).nrKeys + " ");
 			}
@@ -937,6 +2446,11 @@ TechnicalInformationHandler {
 	@Override
 	public int clusterInstance(Instance instance) {
 		
+		//a row of the training data
+		Integer row = m_RowIndex == null ? null : m_RowIndex.get(instance);
+		if(row != null && m_RowClusters != null && m_RowClusters[row] >= 0)
+			return m_RowClusters[row];
+		
 		/*Instance inst = null;
 		if (!m_dontReplaceMissing) {
 			m_ReplaceMissingFilter.input(instance);
@@ -946,8 +2460,12 @@ TechnicalInformationHandler {
 			inst = instance;
 		}*/
 		
-		m_ReplaceMissingFilter.input(instance);
-		Instance inst = m_ReplaceMissingFilter.output();
+		//the filter keeps the instance until output() is called
+		Instance inst;
+		synchronized (m_ReplaceMissingFilter) {
+			m_ReplaceMissingFilter.input(instance);
+			inst = m_ReplaceMissingFilter.output();
+		}
 
 		return clusterProcessedInstance(inst, false, true);
 	}
@@ -963,44 +2481,48 @@ TechnicalInformationHandler {
 	private int clusterProcessedInstance(Instance instance, boolean updateErrors,
 			boolean useFastDistCalc) {
 
-		double minDist = Integer.MAX_VALUE;
+		//squared distance to the closest root entry
+		double minDist = Double.MAX_VALUE;
 		int bestCluster = 0;
-
-		for (int i = 0; i <  mTree.root.nrKeys && mTree.root.routes.size() > i; i++) {
-
-			if(mTree.root.routes.get(i).instances.contains(instance)) {
-				double dist;
-				if (useFastDistCalc)
-					dist = m_DistanceFunction.distance(instance,
-							mTree.root.instances.get(i));
-				else
-					dist = m_DistanceFunction.distance(instance,
-							mTree.root.instances.get(i));
-				minDist = dist;
-				bestCluster = i;
-
-				break;
-			}
-			else
-			{
+		
+		//instances of the tree belong to the cluster of their leaf
+		Node leaf = m_LeafIndex == null ? null : m_LeafIndex.get(instance);
+		Integer cluster = leaf == null || m_LeafCluster == null ? null : m_LeafCluster.get(leaf);
+		if(cluster != null)
+		{
+			bestCluster = cluster;
+			if(!updateErrors)
+				return bestCluster;
+			countDistances(MTreeMetrics.PHASE_ASSIGNMENT, 1);
+			minDist = squaredDistance(instance, mTree.root.instances.get(bestCluster));
+		}
+		else if(rootIndex() != null)
+		{
+			bestCluster = closestRootEntry(instance, rootIndex());
+			if(!updateErrors)
+				return bestCluster;
+			countDistances(MTreeMetrics.PHASE_ASSIGNMENT, 1);
+			minDist = squaredDistance(instance, mTree.root.instances.get(bestCluster));
+		}
+		else
+		{
+			for (int i = 0; i <  mTree.root.nrKeys && mTree.root.routes.size() > i; i++) {
+				countDistances(MTreeMetrics.PHASE_ASSIGNMENT, 1);
 				double dist;
 				if (useFastDistCalc)
-					dist = m_DistanceFunction.distance(instance,
-							mTree.root.instances.get(i), minDist);
+					dist = squaredDistance(instance, mTree.root.instances.get(i), minDist);
 				else
-					dist = m_DistanceFunction.distance(instance,
-							mTree.root.instances.get(i));
+					dist = squaredDistance(instance, mTree.root.instances.get(i));
 				if (dist < minDist) {
 					minDist = dist;
 					bestCluster = i;
-
 				}
 			}
 		}
 		if (updateErrors) {
-			if (m_DistanceFunction instanceof EuclideanDistance) {
-				// Euclidean distance to Squared Euclidean distance
-				minDist *= minDist;
+			if (!(m_DistanceFunction instanceof EuclideanDistance)) {
+				// the other distances add up their plain distance
+				minDist = Math.sqrt(minDist);
 			}
 			index2++;
 			m_squaredErrors[bestCluster] += minDist;
@@ -1009,110 +2531,470 @@ TechnicalInformationHandler {
 		return bestCluster;
 	}
 	
+	/**
+	 * Gets the pivot table over the root entries, building it when the root
+	 * changed.
+	 * 
+	 * @return the table, null if the root has few entries or the distance is
+	 *         not a metric
+	 */
+	private RootIndex rootIndex() {
+		Node root = mTree.root;
+		int n = Math.min(root.nrKeys, root.routes.size());
+		if(m_Kernel == null || !m_Kernel.isMetric() || n < ROOT_INDEX_MIN_ENTRIES)
+			return null;
+		
+		RootIndex index = m_RootIndex;
+		if(index != null && index.root == root && index.size() == n)
+			return index;
+		
+		//farthest first pivots, one per doubling of the entries past the minimum
+		int p = 32 - Integer.numberOfLeadingZeros(n / ROOT_INDEX_MIN_ENTRIES) + 2;
+		int[] pivots = new int[p];
+		double[][] distances = new double[p][n];
+		double[] sums = new double[n];
+		for(int j = 0; j < p; j++) {
+			if(j > 0)
+				for(int i = 1; i < n; i++)
+					if(sums[i] > sums[pivots[j]])
+						pivots[j] = i;
+			Instance pivot = root.instances.get(pivots[j]);
+			for(int i = 0; i < n; i++) {
+				distances[j][i] = distance(root.instances.get(i), pivot);
+				sums[i] += distances[j][i];
+			}
+			countDistances(MTreeMetrics.PHASE_ASSIGNMENT, n);
+		}
+		
+		Integer[] sorted = new Integer[n];
+		for(int i = 0; i < n; i++)
+			sorted[i] = i;
+		Arrays.sort(sorted, (a, b) -> Double.compare(distances[0][a], distances[0][b]));
+		int[] order = new int[n];
+		double[] table = new double[n * p];
+		for(int i = 0; i < n; i++) {
+			order[i] = sorted[i];
+			for(int j = 0; j < p; j++)
+				table[i * p + j] = distances[j][order[i]];
+		}
+		index = new RootIndex(root, pivots, order, table);
+		m_RootIndex = index;
+		return index;
+	}
+	
+	/**
+	 * Finds the root entry closest to an instance. The entries are visited
+	 * from the distance of the instance to the first pivot outwards, until
+	 * the difference passes the closest distance found. The result is the one
+	 * of a scan of the entries.
+	 * 
+	 * @param instance the instance, filtered
+	 * @param index the pivot table over the root entries
+	 * @return the position of the closest entry in the root
+	 */
+	private int closestRootEntry(Instance instance, RootIndex index) {
+		ArrayList<Instance> entries = index.root.instances;
+		int n = index.size();
+		int p = index.pivots.length;
+		
+		//the pivots are entries, the squared distances are kept for the comparisons
+		double[] pivotDistances = new double[p];
+		int best = -1;
+		double bestDist = Double.POSITIVE_INFINITY;
+		for(int j = 0; j < p; j++) {
+			int i = index.pivots[j];
+			double dist = squaredDistance(instance, entries.get(i));
+			pivotDistances[j] = Math.sqrt(dist);
+			if(dist < bestDist || (dist == bestDist && i < best)) {
+				bestDist = dist;
+				best = i;
+			}
+		}
+		
+		//the bounds are rounded like the distances, the slack keeps the ties
+		double radius = Math.sqrt(bestDist) * ROOT_INDEX_SLACK;
+		int computed = p;
+		int high = index.position(pivotDistances[0]);
+		int low = high - 1;
+		while(low >= 0 || high < n) {
+			int next;
+			if(high >= n || (low >= 0 && pivotDistances[0] - index.table[low * p] < index.table[high * p] - pivotDistances[0]))
+				next = low--;
+			else
+				next = high++;
+			if(Math.abs(pivotDistances[0] - index.table[next * p]) > radius)
+				break;
+			
+			int i = index.order[next];
+			if(i == best || index.lowerBound(next, pivotDistances, radius) > radius)
+				continue;
+			computed++;
+			double dist = squaredDistance(instance, entries.get(i), bestDist);
+			if(dist < bestDist || (dist == bestDist && i < best)) {
+				bestDist = dist;
+				best = i;
+				radius = Math.sqrt(bestDist) * ROOT_INDEX_SLACK;
+			}
+		}
+		countDistances(MTreeMetrics.PHASE_ASSIGNMENT, computed);
+		return best;
+	}
+	
+	/**
+	 * Chooses the rows inserted first, as m_Seeding says. The choice only
+	 * depends on m_SeedDefault, not on the number of execution slots.
+	 * 
+	 * @param data the rows
+	 */
 	private void seedOptimisation(Instances data) //KMeans++ seedOptimisation
 	{
-	      Instances centroids = new Instances(data, 0, 1); 
-	      centroids.delete();
-	      double[] distToClosestCentroid = new double[data.numInstances()];
-	      double[] weightedDistribution  = new double[data.numInstances()];  // cumulative sum of squared distances
-	
-	      Random gen = new Random();
-	      int choose = 0;
-	
-	      for (int c = 0; c < m_NumClusters; c++) {
-	
-	         // first centroid: choose any data point
-	         if (c == 0)
-	            choose = gen.nextInt(data.numInstances() - 1);
-	
-	         // after first centroid, use a weighted distribution
-	         else {
-	
-	            // check if the most recently added centroid is closer to any of the points than previously added ones
-	            for (int p = 0; p < data.numInstances(); p++) 
-	            {
-	               // gives chosen points 0 probability of being chosen again -> sampling without replacement
-	               double tempDistance = Math.pow(m_DistanceFunction.distance(data.get(p), centroids.get(c - 1)), 2); 
-	
-	               // base case: if we have only chosen one centroid so far, nothing to compare to
-	               if (c == 1)
-	               {
-	                  distToClosestCentroid[p] = tempDistance;
-	               }
-	               else 
-	               { // c != 1 
-	                  if (tempDistance < distToClosestCentroid[p])
-	                  {
-	                	  distToClosestCentroid[p] = tempDistance;
-	                  }
-	               }
-	
-	               if (p == 0)
-	               {
-	            	   weightedDistribution[0] = distToClosestCentroid[0];
-	               }
-	               else
-	          	   {
-	            	   weightedDistribution[p] = weightedDistribution[p-1] + distToClosestCentroid[p];
-	           	   }
-	
-	            }
-	
-	            // choose the next centroid
-	            double rand = gen.nextDouble();
-	            for (int j = data.numInstances() - 1; j > 0; j--) 
-	            {
-	              
-	            	if (rand > weightedDistribution[j - 1] / weightedDistribution[data.numInstances() - 1]) 
-	            	{ 
-	                  choose = j; // one bigger than the one above
-	                  break;
-	               }
-	               else // Because of invalid dimension errors, we can't make the for loop go to j2 > -1 when we have (j2-1) in the loop.
-	                  choose = 0;
-	            }
-	         }  
-	         
-	         // store the chosen centroid
-	         centroids.add(data.get(choose));
-	      }
-	      testCentroids = centroids;
+		Random gen = new Random(m_SeedDefault);
+		if(m_Seeding == SEEDING_KMEANS_PARALLEL)
+			m_SeedRows = seedKMeansParallel(data, gen);
+		else if(m_Seeding == SEEDING_AFK_MC2)
+			m_SeedRows = seedAFKMC2(data, gen);
+		else
+			m_SeedRows = seedKMeansPlusPlus(data, gen);
+		
+		Instances centroids = new Instances(data, m_SeedRows.length);
+		for(int row : m_SeedRows)
+			centroids.add(data.get(row));
+		testCentroids = centroids;
 	}
-
-	public ArrayList<Instance> RangeQuery(int parentClusterNumber, Instance Q, double r)
+	
+	/**
+	 * k-means++: the first seed is chosen at random, each next one with a
+	 * probability proportional to its squared distance to the closest seed.
+	 * A row already chosen has no chance to be chosen again, when all the
+	 * rows are chosen the first row is.
+	 */
+	private int[] seedKMeansPlusPlus(Instances data, Random gen)
 	{
-		rangeQueryInstances.clear();
-		Node node = getRoot();
-		Instance parent = node.instances.get(parentClusterNumber);
-		return RecursiveRangeQuery(parent, node, Q, r);
+		int n = data.numInstances();
+		int[] seeds = new int[m_NumClusters];
+		double[] distToClosestCentroid = new double[n];
+		double[] weightedDistribution = new double[n];  // cumulative sum of squared distances
+		Arrays.fill(distToClosestCentroid, Double.POSITIVE_INFINITY);
+		
+		// first centroid: choose any data point
+		seeds[0] = n > 1 ? gen.nextInt(n - 1) : 0;
+		for(int c = 1; c < seeds.length; c++)
+		{
+			// check if the most recently added centroid is closer to any of the points than previously added ones
+			updateSeedDistances(data, seeds, c - 1, c, distToClosestCentroid, null);
+			cumulativeSum(distToClosestCentroid, weightedDistribution);
+			seeds[c] = sampleRow(weightedDistribution, gen.nextDouble());
+		}
+		return seeds;
 	}
-	/**RangeQuery: searches all the instances that are within a given distance from a given instance */
-	public ArrayList<Instance> RecursiveRangeQuery(Instance parent, Node node, Instance Q, double r)
+	
+	/**
+	 * k-means||: after a first seed chosen at random, every row becomes a
+	 * candidate with a probability proportional to its squared distance to
+	 * the closest candidate, 2k of them are expected at each of a few rounds.
+	 * The candidates, weighted by the number of rows closest to them, are
+	 * then reduced to k seeds with k-means++.
+	 */
+	private int[] seedKMeansParallel(Instances data, Random gen)
 	{
-		DistanceFunction distanceFunction = new EuclideanDistance();
-		distanceFunction.setInstances(train);
-		int i;
-		/*if the current node is not a leaf, check to see if you can go downward*/
-
-		if(!node.isLeaf)
+		int n = data.numInstances();
+		double oversampling = 2.0 * m_NumClusters;
+		double[] distances = new double[n];
+		int[] closest = new int[n];
+		Arrays.fill(distances, Double.POSITIVE_INFINITY);
+		
+		int[] candidates = new int[] { gen.nextInt(n) };
+		int numCandidates = 1;
+		updateSeedDistances(data, candidates, 0, 1, distances, closest);
+		for(int round = 0; round < KMEANS_PARALLEL_ROUNDS; round++)
 		{
-			for(i = 0; i < node.nrKeys; i++)
-				//if( Math.abs(m_DistanceFunction.distance(Q, node.instances.get(i)) - m_DistanceFunction.distance(parent , node.instances.get(i))) <= r + node.radix.get(i))
-				if(distanceFunction.distance(Q, node.instances.get(i)) <= r + node.radix.get(i))
-					RecursiveRangeQuery(node.instances.get(i), node.routes.get(i), Q, r);
+			double cost = 0;
+			for(int i = 0; i < n; i++)
+				cost += distances[i];
+			if(cost <= 0)
+				break;
+			
+			//one draw per row, in row order, so the candidates don't depend on the threads
+			int first = numCandidates;
+			for(int i = 0; i < n; i++)
+			{
+				if(gen.nextDouble() < oversampling * distances[i] / cost)
+				{
+					if(numCandidates == candidates.length)
+						candidates = Arrays.copyOf(candidates, 2 * numCandidates + 1);
+					candidates[numCandidates++] = i;
+				}
+			}
+			updateSeedDistances(data, candidates, first, numCandidates, distances, closest);
 		}
-
-		else/*else search close objects*/
+		
+		double[] weights = new double[numCandidates];
+		for(int i = 0; i < n; i++)
+			weights[closest[i]] += data.instance(i).weight();
+		
+		//weighted k-means++ over the candidates
+		int k = Math.min(m_NumClusters, numCandidates);
+		int[] chosen = new int[k];
+		double[] candidateDistances = new double[numCandidates];
+		double[] weightedDistribution = new double[numCandidates];
+		Arrays.fill(candidateDistances, Double.POSITIVE_INFINITY);
+		cumulativeSum(weights, weightedDistribution);
+		chosen[0] = sampleRow(weightedDistribution, gen.nextDouble());
+		for(int c = 1; c < k; c++)
 		{
-			for(i = 0; i < node.nrKeys; i++)
-				if(Math.abs(distanceFunction.distance(Q, parent) - distanceFunction.distance(parent, node.instances.get(i))) <= r)
-					if(distanceFunction.distance(Q, node.instances.get(i)) <= r)
-					{
-						rangeQueryInstances.add(node.instances.get(i));
-					}
+			Instance seed = data.instance(candidates[chosen[c - 1]]);
+			double[] weighted = new double[numCandidates];
+			for(int j = 0; j < numCandidates; j++)
+			{
+				double d = squaredDistance(data.instance(candidates[j]), seed, candidateDistances[j]);
+				if(d < candidateDistances[j])
+					candidateDistances[j] = d;
+				weighted[j] = weights[j] * candidateDistances[j];
+			}
+			cumulativeSum(weighted, weightedDistribution);
+			if(!(weightedDistribution[numCandidates - 1] > 0))
+			{
+				k = c;
+				break;
+			}
+			chosen[c] = sampleRow(weightedDistribution, gen.nextDouble());
 		}
+		
+		int[] seeds = new int[k];
+		for(int c = 0; c < k; c++)
+			seeds[c] = candidates[chosen[c]];
+		return seeds;
+	}
+	
+	/**
+	 * AFK-MC2: approximates k-means++ without a pass over the rows for each
+	 * seed. Each seed is the last state of a Markov chain whose proposals are
+	 * drawn from the squared distances to the first seed mixed with the
+	 * uniform distribution, computed in one pass.
+	 */
+	private int[] seedAFKMC2(Instances data, Random gen)
+	{
+		int n = data.numInstances();
+		int[] seeds = new int[m_NumClusters];
+		seeds[0] = gen.nextInt(n);
+		
+		double[] proposal = new double[n];
+		Arrays.fill(proposal, Double.POSITIVE_INFINITY);
+		updateSeedDistances(data, seeds, 0, 1, proposal, null);
+		double total = 0;
+		for(int i = 0; i < n; i++)
+			total += proposal[i];
+		for(int i = 0; i < n; i++)
+			proposal[i] = (total > 0 ? proposal[i] / total / 2 : 0) + 0.5 / n;
+		double[] cumulative = new double[n];
+		cumulativeSum(proposal, cumulative);
+		
+		for(int c = 1; c < seeds.length; c++)
+		{
+			int x = sampleRow(cumulative, gen.nextDouble());
+			double dx = seedDistance(data.instance(x), data, seeds, c);
+			for(int step = 1; step < AFK_MC2_CHAIN_LENGTH; step++)
+			{
+				int y = sampleRow(cumulative, gen.nextDouble());
+				double dy = seedDistance(data.instance(y), data, seeds, c);
+				if(dx * proposal[y] == 0 || dy * proposal[x] / (dx * proposal[y]) > gen.nextDouble())
+				{
+					x = y;
+					dx = dy;
+				}
+			}
+			seeds[c] = x;
+		}
+		return seeds;
+	}
+	
+	/**
+	 * @return the squared distance from an instance to the closest of the
+	 *         first count seeds
+	 */
+	private double seedDistance(Instance inst, Instances data, int[] seeds, int count)
+	{
+		double min = Double.POSITIVE_INFINITY;
+		for(int c = 0; c < count; c++)
+			min = Math.min(min, squaredDistance(inst, data.instance(seeds[c]), min));
+		return min;
+	}
+	
+	/**
+	 * Lowers the squared distance from every row to its closest seed with the
+	 * distances to the seeds first to end - 1. Big datasets are split into
+	 * m_executionSlots blocks of rows updated in parallel.
+	 * 
+	 * @param data the rows
+	 * @param seeds the rows of the seeds
+	 * @param first the first new seed
+	 * @param end the end of the new seeds
+	 * @param distances the squared distance from each row to its closest seed
+	 * @param closest receives the closest seed of each row, may be null
+	 */
+	private void updateSeedDistances(final Instances data, final int[] seeds, final int first, final int end,
+			final double[] distances, final int[] closest)
+	{
+		final int n = data.numInstances();
+		if(m_executorPool == null || m_executionSlots < 2 || n < MIN_PARALLEL_SEEDING_SIZE) {
+			updateSeedDistances(data, seeds, first, end, distances, closest, 0, n);
+			return;
+		}
+		
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			final int block = (n + m_executionSlots - 1) / m_executionSlots;
+			for (int from = 0; from < n; from += block) {
+				final int start = from;
+				results.add(m_executorPool.submit(new Runnable() {
+					@Override
+					public void run() {
+						updateSeedDistances(data, seeds, first, end, distances, closest, start,
+								Math.min(n, start + block));
+					}
+				}));
+			}
+			for (Future<?> result : results)
+				result.get();
+		} catch (Exception e) {
+			e.printStackTrace();
+			//the updates only lower the distances, they can be done again
+			updateSeedDistances(data, seeds, first, end, distances, closest, 0, n);
+		}
+	}
+	
+	private void updateSeedDistances(Instances data, int[] seeds, int first, int end, double[] distances,
+			int[] closest, int from, int to)
+	{
+		for(int c = first; c < end; c++)
+		{
+			Instance seed = data.instance(seeds[c]);
+			for(int i = from; i < to; i++)
+			{
+				double d = squaredDistance(data.instance(i), seed, distances[i]);
+				if(d < distances[i])
+				{
+					distances[i] = d;
+					if(closest != null)
+						closest[i] = c;
+				}
+			}
+		}
+	}
+	
+	private static void cumulativeSum(double[] values, double[] cumulative)
+	{
+		double sum = 0;
+		for(int i = 0; i < values.length; i++)
+		{
+			sum += values[i];
+			cumulative[i] = sum;
+		}
+	}
+	
+	/**
+	 * Draws a row from the cumulative sum of its weights: the first row whose
+	 * cumulative share is not smaller than rand, by binary search. The last
+	 * row is a sentinel, it is returned if no row is found. Without any
+	 * weight the first row is returned.
+	 */
+	private static int sampleRow(double[] cumulative, double rand)
+	{
+		int n = cumulative.length;
+		double total = cumulative[n - 1];
+		int low = 0;
+		int high = n - 1;
+		while(low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if(rand > cumulative[middle] / total)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
 
-		return rangeQueryInstances;
+	/**
+	 * RangeQuery: searches all the instances of the tree that are within a
+	 * given distance from a given instance. Queries only read the tree and the
+	 * distance function of the built clusterer and collect their results in
+	 * a list of their own, so a built tree can be queried by many threads at
+	 * once, as long as it is not modified at the same time.
+	 * 
+	 * @param parentClusterNumber not used, the whole tree is searched
+	 * @param Q the query instance
+	 * @param r the query radius
+	 * @return the instances within distance r from Q
+	 */
+	public ArrayList<Instance> RangeQuery(int parentClusterNumber, Instance Q, double r)
+	{
+		Node node = getRoot();
+		Instance parent = node.instances.get(parentClusterNumber);
+		return RecursiveRangeQuery(parent, node, Q, r);
+	}
+	/**RangeQuery: searches all the instances that are within a given distance from a given instance */
+	public ArrayList<Instance> RecursiveRangeQuery(Instance parent, Node node, Instance Q, double r)
+	{
+		ArrayList<Instance> result = new ArrayList<Instance>();
+		//distances computed, nodes visited, entries pruned
+		long[] stats = new long[3];
+		
+		//the entries of the node store their distances to node.parent
+		double distanceToParent = -1;
+		if(node.parent != null) {
+			distanceToParent = distance(Q, node.parent);
+			stats[0]++;
+		}
+		
+		RecursiveRangeQuery(node, Q, r, distanceToParent, result, stats);
+		if(m_Metrics != null)
+			m_Metrics.query(MTreeMetrics.PHASE_RANGE_QUERY, stats[0], stats[1], stats[2]);
+		return result;
+	}
+	
+	/**
+	 * Searches a node for the instances within distance r from Q.
+	 * 
+	 * @param node the node to search
+	 * @param Q the query instance
+	 * @param r the query radius
+	 * @param distanceToParent the distance from Q to the parent routing object
+	 *        of the node, negative if the node has no parent
+	 * @param result the list the instances found are added to
+	 * @param stats the distances computed, nodes visited and entries pruned so far
+	 */
+	private void RecursiveRangeQuery(Node node, Instance Q, double r, double distanceToParent,
+			ArrayList<Instance> result, long[] stats)
+	{
+		int i;
+		stats[1]++;
+		for(i = 0; i < node.nrKeys; i++)
+		{
+			double radix = node.isLeaf ? 0 : node.radix.get(i);
+			
+			//|d(Q, parent) - d(entry, parent)| is a lower bound of d(Q, entry)
+			if(distanceToParent >= 0 && Math.abs(distanceToParent - node.parentDistances.get(i)) > r + radix) {
+				stats[2]++;
+				continue;
+			}
+			
+			double d = distance(Q, node.instances.get(i));
+			stats[0]++;
+			
+			/*if the current node is not a leaf, check to see if you can go downward*/
+			if(!node.isLeaf)
+			{
+				if(d <= r + radix)
+					RecursiveRangeQuery(node.routes.get(i), Q, r, d, result, stats);
+				else
+					stats[2]++;
+			}
+			else if(d <= r)/*else search close objects*/
+			{
+				result.add(node.instances.get(i));
+			}
+		}
 	}
 
 	public double twoFeaturesDistance(Instance a, Instance b)
@@ -1128,6 +3010,7 @@ TechnicalInformationHandler {
 	/**RangeQuery: searches all the instances that are within a given distance from a given instance */
 	public ArrayList<Instance> CustomRangeQuery(Instance parent, Node node, Instance Q, double r)
 	{
+		ArrayList<Instance> result = new ArrayList<Instance>();
 		int i;
 		/*if the current node is not a leaf, check to see if you can go downward*/
 
@@ -1136,7 +3019,7 @@ TechnicalInformationHandler {
 			for(i = 0; i < node.nrKeys; i++)
 				//if( Math.abs(m_DistanceFunction.distance(Q, node.instances.get(i)) - m_DistanceFunction.distance(parent , node.instances.get(i))) <= r + node.radix.get(i))
 				if(twoFeaturesDistance(Q, node.instances.get(i)) <= r + node.radix.get(i))
-					RecursiveRangeQuery(node.instances.get(i), node.routes.get(i), Q, r);
+					result.addAll(RecursiveRangeQuery(node.instances.get(i), node.routes.get(i), Q, r));
 		}
 
 		else/*else search close objects*/
@@ -1145,184 +3028,314 @@ TechnicalInformationHandler {
 				if(Math.abs(twoFeaturesDistance(Q, parent) - twoFeaturesDistance(parent, node.instances.get(i))) <= r)
 					if(twoFeaturesDistance(Q, node.instances.get(i)) <= r)
 					{
-						rangeQueryInstances.add(node.instances.get(i));
+						result.add(node.instances.get(i));
 					}
 		}
 
-		return rangeQueryInstances;
+		return result;
 	}
 	
-	/**Comparator anonymous class implementation used for ordering the KNN Priority Queue*/
-	public static Comparator<PriorityQueueElement> distanceComparator = new Comparator<PriorityQueueElement>(){
-
-		@Override
-		public int compare(PriorityQueueElement pq1, PriorityQueueElement pq2) {
-			if (pq1.dmin < pq2.dmin) return -1;
-			if (pq1.dmin > pq2.dmin) return 1;
-			return 0;
-		}
-	};	
-
-	/**Update the KNN Queue deleting the elements with the distance from the given instance greater than the computed one*/
-	private void updateQueue(Queue<PriorityQueueElement> kNNPriorityQueue, double distance)
+	/**
+	 * kNN: finds the k instances of the tree that are the closest to a given
+	 * instance Q. The nodes are visited closest first, pruned with their
+	 * covering radii and with the distances stored to their parent routing
+	 * objects, so the result is exact. Like the range queries, kNN only
+	 * reads the tree and can be called by many threads at once.
+	 * 
+	 * @param Q the query instance
+	 * @param k the number of neighbours
+	 * @return at most k instances, closest first
+	 */
+	public ArrayList<Instance> kNN(Instance Q, int k)
 	{
-		for(PriorityQueueElement node : kNNPriorityQueue)
-		{
-			if(node.dmin > distance)
-				kNNPriorityQueue.remove(node);
-		}
+		if(k <= 0)
+			return new ArrayList<Instance>();
+		
+		NeighborHeap neighbors = new NeighborHeap(k);
+		kNNSearch(Q, neighbors, new NodeQueue(16), null);
+		
+		int size = neighbors.sort();
+		ArrayList<Instance> nnInstances = new ArrayList<Instance>(size);
+		for(int i = 0; i < size; i++)
+			nnInstances.add(neighbors.instances[i]);
+		return nnInstances;
 	}
-
-	/**kNN: finds the first k elements from the tree that are the closest
-	 *to a given object Q; the points are stored in array NNArrayElements*/
-	public ArrayList<Instance> kNN(Instance Q, int k)
+	
+	/**
+	 * Approximate kNN: finds k neighbours of Q with the given search settings.
+	 * 
+	 * @param Q the query instance
+	 * @param k the number of neighbours
+	 * @param parameters the settings of the search
+	 * @return the row ids, distances and number of distances computed
+	 */
+	public KNNResult kNN(Instance Q, int k, KNNSearchParameters parameters)
 	{
-
-		Node root = this.getRoot();
-		Queue<PriorityQueueElement> kNNPriorityQueue = new PriorityQueue(k, distanceComparator);
-		PriorityQueueElement node, nextNode;
-
-		/* add the root as the first node of PR */
-		node = new PriorityQueueElement();
-		node.node = root;
-		node.parent = null;
-		node.dmin = 0;
-		kNNPriorityQueue.add(node);
-
-		ArrayList<InstanceRadix> NNArrayElements = new ArrayList<InstanceRadix>(k);
-		/* initialise the NN array */
-		for(int i = 0; i < k; i++)
+		KNNResult result = new KNNResult(1, Math.max(k, 0));
+		if(k <= 0)
+			return result;
+		
+		NeighborHeap neighbors = new NeighborHeap(k);
+		result.m_DistanceEvaluations[0] = kNNSearch(Q, neighbors, new NodeQueue(16), parameters);
+		storeNeighbors(neighbors, result, 0);
+		return result;
+	}
+	
+	/**
+	 * Sorts the neighbours of a query and stores them in a result.
+	 */
+	private void storeNeighbors(NeighborHeap neighbors, KNNResult result, int q)
+	{
+		int k = result.m_K;
+		int size = neighbors.sort();
+		for(int j = 0; j < size; j++)
 		{
-			InstanceRadix ir = new InstanceRadix();
-			ir.radix = INFINITY;
-			NNArrayElements.add(ir);
+			Integer row = m_TrainRowIndex == null ? null : m_TrainRowIndex.get(neighbors.instances[j]);
+			result.m_Rows[q * k + j] = row == null ? -1 : row;
+			result.m_Distances[q * k + j] = neighbors.distances[j];
 		}
-
-		/* find the neighbors */
-		while(!kNNPriorityQueue.isEmpty())
+	}
+	
+	/**
+	 * Finds the k nearest neighbours of every query, on a fork join pool of
+	 * m_executionSlots threads (all the processors if there is only one slot).
+	 * 
+	 * @param queries the query instances
+	 * @param k the number of neighbours
+	 * @param groupByRootKey process the queries ordered by their closest root
+	 *        entry, so queries that visit the same subtrees run together
+	 * @return the row ids (in the training data) and distances of the
+	 *         neighbours of each query, closest first
+	 */
+	public KNNResult kNN(Instances queries, int k, boolean groupByRootKey)
+	{
+		return kNN(queries, k, groupByRootKey, null);
+	}
+	
+	/**
+	 * Finds k neighbours of every query with the given search settings, in parallel.
+	 * 
+	 * @param queries the query instances
+	 * @param k the number of neighbours
+	 * @param groupByRootKey process the queries ordered by their closest root entry
+	 * @param parameters the settings of an approximate search, null for the exact search
+	 * @return the row ids, distances and number of distances computed for each query
+	 */
+	public KNNResult kNN(Instances queries, int k, boolean groupByRootKey, KNNSearchParameters parameters)
+	{
+		final KNNResult result = new KNNResult(queries.numInstances(), Math.max(k, 0));
+		if(k <= 0 || queries.numInstances() == 0)
+			return result;
+		
+		final Instances batch = queries;
+		final int[] order = groupByRootKey ? rootKeyOrder(queries) : identityOrder(queries.numInstances());
+		
+		queryPool().invoke(new KNNBatchTask(batch, order, 0, order.length, result, parameters));
+		return result;
+	}
+	
+	/**
+	 * Gets the pool batch queries run in: the common pool, or a pool of
+	 * m_executionSlots threads kept by the tree for all its batches. Its
+	 * threads are daemons and end when they are idle.
+	 */
+	private synchronized ForkJoinPool queryPool() {
+		if(m_executionSlots <= 1)
+			return ForkJoinPool.commonPool();
+		if(m_QueryPool == null || m_QueryPool.getParallelism() != m_executionSlots)
 		{
-			nextNode = kNNPriorityQueue.poll();
-			if(nextNode.parent == null)
-				kNNNodeSearch(null/*nextNode.parent*/, nextNode.node, Q, k, kNNPriorityQueue, NNArrayElements);
-			else
-				kNNNodeSearch(nextNode.parent, nextNode.node, Q, k, kNNPriorityQueue, NNArrayElements);
+			if(m_QueryPool != null)
+				m_QueryPool.shutdown();
+			m_QueryPool = new ForkJoinPool(m_executionSlots);
 		}
-
-		ArrayList<Instance> nnInstances = new ArrayList<Instance>();
-		for(int i = 0; i < NNArrayElements.size(); i++)
-		{
-			nnInstances.add(NNArrayElements.get(i).center);
+		return m_QueryPool;
+	}
+	
+	/**
+	 * Finds the k nearest neighbours of every query, in the order of the queries.
+	 * 
+	 * @param queries the query instances
+	 * @param k the number of neighbours
+	 * @return the row ids and distances of the neighbours of each query
+	 */
+	public KNNResult kNN(Instances queries, int k)
+	{
+		return kNN(queries, k, false);
+	}
+	
+	private int[] identityOrder(int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		return order;
+	}
+	
+	/**
+	 * Orders the queries by their closest root entry (counting sort, stable).
+	 * 
+	 * @param queries the queries
+	 * @return the query indices grouped by root entry
+	 */
+	private int[] rootKeyOrder(Instances queries) {
+		Node root = getRoot();
+		int n = queries.numInstances();
+		int[] key = new int[n];
+		int[] counts = new int[root.nrKeys + 1];
+		countDistances(MTreeMetrics.PHASE_KNN, (long) n * root.nrKeys);
+		for (int q = 0; q < n; q++) {
+			double min = Double.MAX_VALUE;
+			for (int i = 0; i < root.nrKeys; i++) {
+				double d = squaredDistance(queries.instance(q), root.instances.get(i), min);
+				if (d < min) {
+					min = d;
+					key[q] = i;
+				}
+			}
+			counts[key[q] + 1]++;
 		}
-		return nnInstances;
+		for (int i = 1; i < counts.length; i++)
+			counts[i] += counts[i - 1];
+		
+		int[] order = new int[n];
+		for (int q = 0; q < n; q++)
+			order[counts[key[q]]++] = q;
+		return order;
 	}
-
-	/**kNNNodeSearch: finds the first k elements from the tree that are the closest to a given object Q;
-	 the points are stored in array NNArrayElements*/
-	void kNNNodeSearch(Instance parent, Node root, Instance Q, int k, Queue<PriorityQueueElement> priorityQueue, ArrayList<InstanceRadix> NNArrayElements)
+	
+	/**
+	 * Searches the neighbours of a range of queries, splitting the range
+	 * until it is small enough. Each task reuses its heaps for all its queries.
+	 */
+	private class KNNBatchTask extends RecursiveAction
 	{
-		PriorityQueueElement node = new PriorityQueueElement();
-		double dmin, dmax;
-
-		int i;
-
-		/* for internal nodes */
-		if(!root.isLeaf)
+		private static final long serialVersionUID = 5129803126641744090L;
+		
+		private final Instances queries;
+		private final int[] order;
+		private final int from, to;
+		private final KNNResult result;
+		private final KNNSearchParameters parameters;
+		
+		KNNBatchTask(Instances queries, int[] order, int from, int to, KNNResult result,
+				KNNSearchParameters parameters)
 		{
-			for(i = 0; i < root.nrKeys; i++)
-				if((parent == null) ||(parent != null && Math.abs(m_DistanceFunction.distance(parent, Q) - m_DistanceFunction.distance(root.instances.get(i), parent)) <= root.radix.get(i) + NNArrayElements.get(NNArrayElements.size() - 1).radix))
-				{
-					//distance between Q and the closest point of the cluster
-					dmin = Math.max(m_DistanceFunction.distance(root.instances.get(i), Q) - root.radix.get(i), 0);
-					if(dmin < NNArrayElements.get(NNArrayElements.size() -1).radix)
-					{
-						/* insert active sub-trees in PR*/
-						node.node = root.routes.get(i);
-						node.parent = root.instances.get(i);
-						node.dmin = dmin;
-						priorityQueue.add(node);
-
-						//distance between Q and the farest point in the cluster 
-						dmax = m_DistanceFunction.distance(root.instances.get(i), Q) + root.radix.get(i);
-
-						/* update the NN array */
-						if(dmax < NNArrayElements.get(NNArrayElements.size() - 1).radix)
-						{
-							InstanceRadix e = new InstanceRadix();
-							e.radix = dmax;
-							e.center = root.instances.get(i);
-							e.isPlaceHolder = true;
-							/* insert e in the array;
-			   				   e is only a placeholder for
-			   				   its descendants from leaf nodes;
-							 */
-
-							NNUpdate(NNArrayElements,k,e,parent);
-							/* update the queue */
-							updateQueue(priorityQueue, NNArrayElements.get(NNArrayElements.size() - 1).radix);
-						}
-					}
-				}
+			this.queries = queries;
+			this.order = order;
+			this.from = from;
+			this.to = to;
+			this.result = result;
+			this.parameters = parameters;
 		}
-		/* for leaf nodes */
-		else
+		
+		@Override
+		protected void compute()
 		{
-			for(i = 0; i < root.nrKeys; i++)
-				if(Math.abs(m_DistanceFunction.distance(parent, Q) - m_DistanceFunction.distance(root.instances.get(i), parent)) < NNArrayElements.get(NNArrayElements.size() - 1).radix)
-				if(m_DistanceFunction.distance(root.instances.get(i), Q) < NNArrayElements.get(NNArrayElements.size() - 1).radix)
-				{
-					InstanceRadix e = new InstanceRadix();
-					e.radix = m_DistanceFunction.distance(root.instances.get(i), Q);
-					e.center = root.instances.get(i);
-					/* insert the actual points in the array and remove placeholders*/
-					NNUpdate(NNArrayElements,k,e,parent);
-					/* update the queue */
-					updateQueue(priorityQueue,NNArrayElements.get(NNArrayElements.size() - 1).radix);
-				}
+			if(to - from > KNN_BATCH_CHUNK)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new KNNBatchTask(queries, order, from, middle, result, parameters),
+						new KNNBatchTask(queries, order, middle, to, result, parameters));
+				return;
+			}
+			
+			NeighborHeap neighbors = new NeighborHeap(result.m_K);
+			NodeQueue frontier = new NodeQueue(16);
+			for(int i = from; i < to; i++)
+			{
+				int q = order[i];
+				neighbors.clear();
+				frontier.clear();
+				result.m_DistanceEvaluations[q] = kNNSearch(queries.instance(q), neighbors, frontier, parameters);
+				storeNeighbors(neighbors, result, q);
+			}
 		}
 	}
-
-
-	/**NNUpdate: insert the found element, e, whose parent is parent, in the NN array*/
-	void NNUpdate(ArrayList<InstanceRadix> NNArrayElements , int k, InstanceRadix e, Instance parent)
+	
+	/**
+	 * Best first search of the k nearest neighbours of Q.
+	 * 
+	 * @param Q the query instance
+	 * @param neighbors the result heap, its capacity is k
+	 * @param frontier an empty queue used for the nodes still to be visited
+	 * @param parameters the settings of an approximate search, null for the exact search
+	 * @return the number of distances computed
+	 */
+	int kNNSearch(Instance Q, NeighborHeap neighbors, NodeQueue frontier, KNNSearchParameters parameters)
 	{
-		int i,j;
-		i=0;
-
-		/* find the correct position of e */
-		while(i < NNArrayElements.size() - 1 && NNArrayElements.get(i).radix < e.radix)
-			i++;
-
-		boolean found =  false;
-		for(int l = 0;  l < NNArrayElements.size(); l++)
-		{
-			if(NNArrayElements.get(l).hashCode() == e.hashCode())
-				found = true;
-			if(e.radix == NNArrayElements.get(l).radix)
-				found = true;
-		}
-		if(i != NNArrayElements.size() - 1 && !NNArrayElements.contains(e) && !found)
+		double relax = 1;
+		double stopRatio = 1;
+		int maxDistances = Integer.MAX_VALUE;
+		int maxNodes = Integer.MAX_VALUE;
+		if(parameters != null)
 		{
-			/* shift the elements after e with
-			   one position to the right
-			 */
-			NNArrayElements.add(i, e);
-			NNArrayElements.remove(NNArrayElements.size() - 1);
-
+			relax = 1 + parameters.getEpsilon();
+			stopRatio = parameters.getEarlyStopRatio();
+			if(parameters.getMaxDistanceEvaluations() > 0)
+				maxDistances = parameters.getMaxDistanceEvaluations();
+			if(parameters.getMaxNodeVisits() > 0)
+				maxNodes = parameters.getMaxNodeVisits();
 		}
-		i=0;
-		/* if there were a placeholder for e (one ancestor)*/
-		while(i != NNArrayElements.size() - 1)
+		int distances = 0;
+		int nodes = 0;
+		int pruned = 0;
+		
+		Node root = getRoot();
+		frontier.add(root, 0, -1);
+		
+		search:
+		while(frontier.size > 0 && nodes < maxNodes)
 		{
-			if(NNArrayElements.get(i).center == parent && NNArrayElements.get(i).isPlaceHolder)
+			Node node = frontier.nodes[0];
+			double dmin = frontier.dmin[0];
+			double distanceToParent = frontier.distanceToParent[0];
+			frontier.removeTop();
+			
+			//the frontier is ordered, no node left can hold a closer instance
+			if(dmin * relax > neighbors.bound() || dmin > stopRatio * neighbors.bound())
 				break;
-			i++;
+			nodes++;
+			
+			for(int i = 0; i < node.nrKeys; i++)
+			{
+				double radix = node.isLeaf ? 0 : node.radix.get(i);
+				
+				//|d(Q, parent) - d(entry, parent)| is a lower bound of d(Q, entry)
+				if(distanceToParent >= 0
+						&& (Math.abs(distanceToParent - node.parentDistances.get(i)) - radix) * relax > neighbors.bound()) {
+					pruned++;
+					continue;
+				}
+				
+				if(distances == maxDistances)
+					break search;
+				Instance entry = node.instances.get(i);
+				//entries further than this can neither be neighbors nor hold any
+				double cutoff = node.isLeaf ? neighbors.bound() : neighbors.bound() / relax + radix;
+				double d = distance(Q, entry, cutoff);
+				distances++;
+				
+				if(node.isLeaf)
+				{
+					neighbors.offer(d, entry);
+				}
+				else
+				{
+					//distance between Q and the closest possible point of the subtree
+					double dminChild = Math.max(d - radix, 0);
+					if(dminChild * relax <= neighbors.bound())
+					{
+						Node child = node.routes.get(i);
+						//the stored distances of the child are valid only for its own parent
+						frontier.add(child, dminChild, child.parent == entry ? d : -1);
+					}
+					else
+						pruned++;
+				}
+			}
 		}
-
-		/* remove it */
-		if(i != NNArrayElements.size() - 1)
-		{
-			NNArrayElements.remove(i);
-		}	
+		if(m_Metrics != null)
+			m_Metrics.query(MTreeMetrics.PHASE_KNN, distances, nodes, pruned);
+		return distances;
 	}
 
 	/**
@@ -1337,6 +3350,9 @@ TechnicalInformationHandler {
 			throw new Exception(
 					"The assignments are only available when order of instances is preserved (-O)");
 		}
+		//inserts and deletes leave room for more rows in m_RowClusters
+		if (m_Assignments == null && m_RowClusters != null && m_TrainRows != null)
+			m_Assignments = Arrays.copyOf(m_RowClusters, m_TrainRows.size());
 		if (m_Assignments == null) {
 			throw new Exception("No assignments made.");
 		}
@@ -1402,10 +3418,243 @@ TechnicalInformationHandler {
 		m_SplitNumber = number;
 	}
 	
+	/**
+	 * Sets the growth ratio after which a node that was not split is
+	 * evaluated again by the split policy.
+	 * 
+	 * @param ratio the growth ratio, 0 evaluates the node at every insertion
+	 */
+	public void setSplitCheckGrowth(double ratio)
+	{
+		m_SplitCheckGrowth = ratio;
+	}
+	
+	/**
+	 * Gets the growth ratio after which a node that was not split is
+	 * evaluated again by the split policy.
+	 * 
+	 * @return the growth ratio
+	 */
+	public double getSplitCheckGrowth()
+	{
+		return m_SplitCheckGrowth;
+	}
+	
+	/**
+	 * Sets the relative change of the covering radius after which a node
+	 * that was not split is evaluated again by the split policy.
+	 * 
+	 * @param change the relative radius change
+	 */
+	public void setSplitCheckRadiusChange(double change)
+	{
+		m_SplitCheckRadiusChange = change;
+	}
+	
+	/**
+	 * Gets the relative change of the covering radius after which a node
+	 * that was not split is evaluated again by the split policy.
+	 * 
+	 * @return the relative radius change
+	 */
+	public double getSplitCheckRadiusChange()
+	{
+		return m_SplitCheckRadiusChange;
+	}
+	
+	/**
+	 * Sets whether the tree is bulk loaded from the whole training set.
+	 * 
+	 * @param bulkLoad true to build the tree top-down
+	 */
+	public void setBulkLoad(boolean bulkLoad)
+	{
+		m_BulkLoad = bulkLoad;
+	}
+	
+	/**
+	 * Gets whether the tree is bulk loaded from the whole training set.
+	 * 
+	 * @return true if the tree is built top-down
+	 */
+	public boolean getBulkLoad()
+	{
+		return m_BulkLoad;
+	}
+	
+	/**
+	 * Sets the maximum number of instances in a leaf built by bulk loading.
+	 * 
+	 * @param size the maximum leaf size
+	 * @throws Exception if the size is not positive
+	 */
+	public void setBulkLoadLeafSize(int size) throws Exception
+	{
+		if (size <= 0) {
+			throw new Exception("Leaf size must be > 0");
+		}
+		m_BulkLoadLeafSize = size;
+	}
+	
+	/**
+	 * Gets the maximum number of instances in a leaf built by bulk loading.
+	 * 
+	 * @return the maximum leaf size
+	 */
+	public int getBulkLoadLeafSize()
+	{
+		return m_BulkLoadLeafSize;
+	}
+	
 	public SelectedTag getSplitPolicy() {
 	    return new SelectedTag(m_splitPolicy, TAGS_SELECTION);
 	  }
 	
+	/**
+	 * Sets how the routing object of a node is chosen.
+	 * 
+	 * @param method one of CENTER_SELECTION
+	 */
+	public void setCenterSelection(SelectedTag method) {
+	    if (method.getTags() == CENTER_SELECTION) {
+	      m_CenterSelection = method.getSelectedTag().getID();
+	    }
+	  }
+	
+	public SelectedTag getCenterSelection() {
+	    return new SelectedTag(m_CenterSelection, CENTER_SELECTION);
+	  }
+	
+	/**
+	 * Sets how the seeds inserted first are chosen.
+	 * 
+	 * @param method one of SEEDING_SELECTION
+	 */
+	public void setSeeding(SelectedTag method) {
+	    if (method.getTags() == SEEDING_SELECTION) {
+	      m_Seeding = method.getSelectedTag().getID();
+	    }
+	  }
+	
+	public SelectedTag getSeeding() {
+	    return new SelectedTag(m_Seeding, SEEDING_SELECTION);
+	  }
+	
+	/**
+	 * Sets the number of candidates evaluated by the sampled center selection.
+	 * 
+	 * @param size the number of candidates
+	 * @throws Exception if the size is not positive
+	 */
+	public void setCenterSampleSize(int size) throws Exception
+	{
+		if (size <= 0) {
+			throw new Exception("Sample size must be > 0");
+		}
+		m_CenterSampleSize = size;
+	}
+	
+	/**
+	 * Gets the number of candidates evaluated by the sampled center selection.
+	 * 
+	 * @return the number of candidates
+	 */
+	public int getCenterSampleSize()
+	{
+		return m_CenterSampleSize;
+	}
+	
+	/**
+	 * Sets whether the tree counts distance computations, visited nodes and
+	 * split decisions. The counters are reset when metrics are enabled.
+	 * 
+	 * @param collect true to collect metrics
+	 */
+	public void setCollectMetrics(boolean collect)
+	{
+		m_Metrics = collect ? new MTreeMetrics(numSplitPolicies()) : null;
+	}
+	
+	/**
+	 * Gets whether the tree counts distance computations, visited nodes and
+	 * split decisions.
+	 * 
+	 * @return true if metrics are collected
+	 */
+	public boolean getCollectMetrics()
+	{
+		return m_Metrics != null;
+	}
+	
+	private static int numSplitPolicies() {
+		int max = 0;
+		for (int i = 0; i < TAGS_SELECTION.length; i++)
+			max = Math.max(max, TAGS_SELECTION[i].getID());
+		return max + 1;
+	}
+	
+	/**
+	 * Gets the current value of the metrics with the depth and fanout
+	 * distribution of the tree.
+	 * 
+	 * @return the snapshot, null if metrics are not collected
+	 */
+	public MTreeMetrics.Snapshot getMetricsSnapshot()
+	{
+		if(m_Metrics == null)
+			return null;
+		
+		ArrayList<Long> fanouts = new ArrayList<Long>();
+		ArrayList<Long> leafSizes = new ArrayList<Long>();
+		int depth = mTree == null ? 0 : treeShape(mTree.root, fanouts, leafSizes);
+		return m_Metrics.snapshot(depth, toArray(fanouts), toArray(leafSizes));
+	}
+	
+	/**
+	 * Counts the nodes of a subtree by number of entries.
+	 * 
+	 * @return the depth of the subtree
+	 */
+	private int treeShape(Node node, ArrayList<Long> fanouts, ArrayList<Long> leafSizes) {
+		ArrayList<Long> counts = node.isLeaf ? leafSizes : fanouts;
+		while(counts.size() <= node.nrKeys)
+			counts.add(0L);
+		counts.set(node.nrKeys, counts.get(node.nrKeys) + 1);
+		
+		int depth = 0;
+		if(!node.isLeaf)
+			for(int i = 0; i < node.nrKeys; i++)
+				depth = Math.max(depth, treeShape(node.routes.get(i), fanouts, leafSizes));
+		return depth + 1;
+	}
+	
+	private static long[] toArray(ArrayList<Long> list) {
+		long[] array = new long[list.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = list.get(i);
+		return array;
+	}
+	
+	/**
+	 * Sets the number of execution slots (threads) used to build the tree.
+	 * 
+	 * @param slots the number of slots, 1 builds in the calling thread
+	 */
+	public void setNumExecutionSlots(int slots)
+	{
+		m_executionSlots = slots;
+	}
+	
+	/**
+	 * Gets the number of execution slots (threads) used to build the tree.
+	 * 
+	 * @return the number of slots
+	 */
+	public int getNumExecutionSlots()
+	{
+		return m_executionSlots;
+	}
+	
 	/**
 	 * gets the number of clusters to generate.
 	 * 
@@ -1441,6 +3690,443 @@ TechnicalInformationHandler {
 			return Utils.sum(m_squaredErrors);
 	}
 
+	/**
+	 * Copies the built tree into the columnar layout, where the points are
+	 * rows of a shared primitive store and the nodes hold arrays.
+	 * 
+	 * @param capacity maximum number of entries of a node for later insertions
+	 * @return the columnar copy of the tree
+	 */
+	public ColumnarMTree toColumnar(int capacity)
+	{
+		return ColumnarMTree.fromMTree(mTree, train, m_DistanceFunction, capacity);
+	}
+
+	/**
+	 * Writes the built tree in the binary format of MTreeSnapshot.
+	 * 
+	 * @param file the file to write
+	 * @throws Exception if the tree is not built or can not be written
+	 */
+	public void saveSnapshot(File file) throws Exception
+	{
+		if(m_ClusterCentroids == null)
+			throw new Exception("No clusterer built yet!");
+		if(!(m_DistanceFunction instanceof NormalizableDistance))
+			throw new Exception("Snapshots need a normalizable distance");
+		
+		MTreeSnapshot snapshot = new MTreeSnapshot();
+		snapshot.header = new Instances(m_ClusterCentroids, 0);
+		snapshot.tree = mTree;
+		snapshot.distance = m_DistanceFunctionID;
+		if(m_DistanceFunction instanceof MinkowskiDistance)
+			snapshot.order = ((MinkowskiDistance) m_DistanceFunction).getOrder();
+		snapshot.errors = m_squaredErrors;
+		
+		int n = snapshot.header.numAttributes();
+		double[][] ranges = ((NormalizableDistance) m_DistanceFunction).getRanges();
+		snapshot.min = new double[n];
+		snapshot.max = new double[n];
+		for(int i = 0; i < n; i++) {
+			snapshot.min[i] = ranges[i][NormalizableDistance.R_MIN];
+			snapshot.max[i] = ranges[i][NormalizableDistance.R_MAX];
+		}
+		
+		//the training rows keep their order, missing values were replaced by their means.
+		//deleted rows are left out, so the rows after them are numbered again
+		int numRows = 0;
+		if(m_TrainRowIndex != null)
+			for(Integer row : m_TrainRowIndex.values())
+				numRows = Math.max(numRows, row + 1);
+		Instance[] rows = new Instance[numRows];
+		if(m_TrainRowIndex != null)
+			for(Map.Entry<Instance, Integer> row : m_TrainRowIndex.entrySet())
+				rows[row.getValue()] = row.getKey();
+		snapshot.numTrainRows = m_TrainRowIndex == null ? 0 : m_TrainRowIndex.size();
+		snapshot.rows = new Instance[snapshot.numTrainRows];
+		for(int i = 0, j = 0; i < numRows; i++)
+			if(rows[i] != null)
+				snapshot.rows[j++] = rows[i];
+		snapshot.means = new double[n];
+		for(Instance row : snapshot.rows)
+			for(int i = 0; i < n; i++)
+				snapshot.means[i] += row.value(i) / snapshot.rows.length;
+		
+		MTreeSnapshot.write(file, snapshot);
+	}
+
+	/**
+	 * Restores a tree written by saveSnapshot. The tree answers clusterInstance,
+	 * kNN and range queries as the tree that was saved; the assignments of the
+	 * training data are not part of the snapshot.
+	 * 
+	 * @param file the snapshot
+	 * @throws Exception if the file can not be read or is not a valid snapshot
+	 */
+	public void loadSnapshot(File file) throws Exception
+	{
+		MTreeSnapshot snapshot = MTreeSnapshot.read(file);
+		Instances header = snapshot.header;
+		
+		//the ranges of a dataset made of the minimum and the maximum are the saved ranges
+		Instances bounds = new Instances(header, 2);
+		bounds.add(new DenseInstance(1.0, snapshot.min));
+		bounds.add(new DenseInstance(1.0, snapshot.max));
+		m_DistanceFunctionID = snapshot.distance;
+		m_DistanceFunction = setDistance();
+		if(m_DistanceFunction instanceof MinkowskiDistance)
+			((MinkowskiDistance) m_DistanceFunction).setOrder(snapshot.order);
+		m_DistanceFunction.setInstances(bounds);
+		((NormalizableDistance) m_DistanceFunction).getRanges();
+		m_Kernel = DistanceKernel.forDistance(m_DistanceFunction, header);
+		m_SquaredKernel = m_Kernel == null ? null : m_Kernel.squared();
+		m_RowKernel = m_Kernel == null ? null : m_Kernel.rows();
+		
+		//the same goes for the means of a single row
+		Instances means = new Instances(header, 1);
+		means.add(new DenseInstance(1.0, snapshot.means));
+		m_ReplaceMissingFilter = new ReplaceMissingValues();
+		m_ReplaceMissingFilter.setInputFormat(header);
+		Filter.useFilter(means, m_ReplaceMissingFilter);
+		
+		this.train = header;
+		mTree = snapshot.tree;
+		m_RowIndex = null;
+		m_RowClusters = null;
+		m_Assignments = null;
+		m_TrainRowIndex = new IdentityHashMap<Instance, Integer>(snapshot.numTrainRows);
+		for(int i = 0; i < snapshot.numTrainRows; i++)
+			m_TrainRowIndex.put(snapshot.rows[i], i);
+		m_TrainRows = null;
+		m_LeafIndex = new IdentityHashMap<Instance, Node>(snapshot.rows.length);
+		indexLeafInstances(mTree.root);
+		indexLeafClusters();
+		
+		m_squaredErrors = snapshot.errors;
+		m_NumClusters = mTree.root.nrKeys;
+		m_ClusterCentroids = new Instances(header, m_NumClusters);
+		m_ClusterSizes = new int[m_NumClusters];
+		for(int i = 0; i < m_NumClusters; i++)
+		{
+			m_ClusterCentroids.add(mTree.root.instances.get(i));
+			if(!mTree.root.isLeaf)
+				m_ClusterSizes[i] = countLeafInstances(mTree.root.routes.get(i));
+		}
+	}
+
+	/**
+	 * Inserts an instance in the built tree through mTreeInsert. The covering
+	 * radii, the clusters of the rows, their sizes and their errors are kept up
+	 * to date; when the root entries change every row is assigned again.
+	 * Inserts and deletes must not run at the same time as queries.
+	 * 
+	 * @param instance the instance to insert
+	 * @return the row of the instance, the rows of the training data come first
+	 * @throws Exception if the tree is not built
+	 */
+	public int insert(Instance instance) throws Exception
+	{
+		if(m_ClusterCentroids == null)
+			throw new Exception("No clusterer built yet!");
+		if(m_RowClusters == null)
+			refreshClusters();
+		
+		Instance inst;
+		synchronized (m_ReplaceMissingFilter) {
+			m_ReplaceMissingFilter.input(instance);
+			inst = m_ReplaceMissingFilter.output();
+		}
+		
+		ArrayList<Instance> rows = trainRows();
+		int row = rows.size();
+		rows.add(inst);
+		m_TrainRowIndex.put(inst, row);
+		if(m_RowIndex == null)
+			m_RowIndex = new IdentityHashMap<Instance, Integer>();
+		m_RowIndex.put(instance, row);
+		
+		Node root = mTree.root;
+		Instance[] centers = rootEntries();
+		mTreeInsert(mTree, inst);
+		
+		if(rootChanged(root, centers))
+			refreshClusters();
+		else
+			assignRow(inst, row);
+		
+		m_Assignments = null;
+		return row;
+	}
+	
+	/**
+	 * Deletes an instance from the tree, given either the instance passed to
+	 * buildClusterer or insert, or the instance stored in the tree.
+	 * 
+	 * @param instance the instance to delete
+	 * @return true if the instance was in the tree
+	 * @throws Exception if the tree is not built
+	 */
+	public boolean delete(Instance instance) throws Exception
+	{
+		if(m_ClusterCentroids == null)
+			throw new Exception("No clusterer built yet!");
+		
+		Integer row = m_TrainRowIndex.get(instance);
+		if(row == null && m_RowIndex != null)
+			row = m_RowIndex.get(instance);
+		return row != null && delete(row);
+	}
+	
+	/**
+	 * Deletes a row from the tree. A leaf left with fewer than
+	 * MIN_LEAF_ENTRIES entries is removed with the nodes it leaves empty, and
+	 * its entries are inserted again. The covering radii are left as they are,
+	 * they still cover the remaining entries.
+	 * 
+	 * @param row the row, as numbered by buildClusterer and insert
+	 * @return true if the row was in the tree
+	 * @throws Exception if the tree is not built
+	 */
+	public boolean delete(int row) throws Exception
+	{
+		if(m_ClusterCentroids == null)
+			throw new Exception("No clusterer built yet!");
+		
+		synchronized (mTree) {
+			return deleteRow(row);
+		}
+	}
+	
+	private boolean deleteRow(int row)
+	{
+		ArrayList<Instance> rows = trainRows();
+		if(row < 0 || row >= rows.size() || rows.get(row) == null)
+			return false;
+		Instance inst = rows.get(row);
+		Node leaf = m_LeafIndex.get(inst);
+		if(leaf == null)
+			return false;
+		
+		//the radii are only a hint, a rounded radius must not hide the leaf
+		ArrayList<Node> path = new ArrayList<Node>();
+		ArrayList<Integer> entries = new ArrayList<Integer>();
+		if(!findPath(mTree.root, leaf, inst, path, entries, true)
+				&& !findPath(mTree.root, leaf, inst, path, entries, false))
+			return false;
+		
+		if(m_RowClusters == null)
+			refreshClusters();
+		unassignRow(inst, row);
+		removeFeature(path, inst);
+		removeFeature(Arrays.asList(leaf), inst);
+		rows.set(row, null);
+		m_TrainRowIndex.remove(inst);
+		m_LeafIndex.remove(inst);
+		
+		for(int i = 0; i < leaf.nrKeys; i++)
+			if(leaf.instances.get(i) == inst) {
+				removeEntry(leaf, i);
+				break;
+			}
+		
+		Node root = mTree.root;
+		Instance[] centers = rootEntries();
+		List<Instance> orphans = new ArrayList<Instance>();
+		if(leaf != root && leaf.nrKeys < MIN_LEAF_ENTRIES)
+			orphans = condense(path, entries, leaf);
+		
+		if(rootChanged(root, centers))
+			refreshClusters();
+		else
+			for(Instance orphan : orphans)
+				assignRow(orphan, m_TrainRowIndex.get(orphan));
+		
+		m_Assignments = null;
+		return true;
+	}
+	
+	/**
+	 * Removes an underflowing leaf and the ancestors it leaves empty, then
+	 * inserts the entries of the leaf again.
+	 * 
+	 * @param path the nodes from the root to the parent of the leaf
+	 * @param entries the entry followed in each node of the path
+	 * @param leaf the leaf
+	 * @return the entries that were inserted again
+	 */
+	private List<Instance> condense(ArrayList<Node> path, ArrayList<Integer> entries, Node leaf)
+	{
+		List<Instance> orphans = new ArrayList<Instance>(leaf.nrKeys);
+		for(int i = 0; i < leaf.nrKeys; i++) {
+			Instance orphan = leaf.instances.get(i);
+			unassignRow(orphan, m_TrainRowIndex.get(orphan));
+			removeFeature(path, orphan);
+			m_LeafIndex.remove(orphan);
+			orphans.add(orphan);
+		}
+		
+		for(int level = path.size() - 1; level >= 0; level--) {
+			Node parent = path.get(level);
+			removeEntry(parent, entries.get(level));
+			if(parent.nrKeys > 0)
+				break;
+		}
+		//an empty root starts again as a leaf
+		if(mTree.root.nrKeys == 0)
+			mTree.root = new Node();
+		
+		for(Instance orphan : orphans)
+			mTreeInsert(mTree, orphan);
+		return orphans;
+	}
+	
+	/**
+	 * Removes an entry from a node. Leaves keep their radii, they do not
+	 * belong to the entries.
+	 */
+	private void removeEntry(Node node, int idx)
+	{
+		node.instances.remove(idx);
+		node.parentDistances.remove(idx);
+		if(!node.isLeaf) {
+			node.routes.remove(idx);
+			node.radix.remove(idx);
+		}
+		node.nrKeys--;
+		node.eccentricities = null;
+		node.eccentricityCount = 0;
+	}
+	
+	/**
+	 * Finds the path from node to the leaf holding inst.
+	 * 
+	 * @param prune whether to skip the entries whose covering radius does not
+	 *        cover inst
+	 * @return true if the leaf was found, path and entries then hold the
+	 *         nodes above it and the entry followed in each of them
+	 */
+	private boolean findPath(Node node, Node leaf, Instance inst, ArrayList<Node> path,
+			ArrayList<Integer> entries, boolean prune)
+	{
+		if(node == leaf)
+			return true;
+		if(node.isLeaf)
+			return false;
+		
+		for(int i = 0; i < node.nrKeys; i++) {
+			if(prune && distance(inst, node.instances.get(i)) > node.radix.get(i))
+				continue;
+			path.add(node);
+			entries.add(i);
+			if(findPath(node.routes.get(i), leaf, inst, path, entries, prune))
+				return true;
+			path.remove(path.size() - 1);
+			entries.remove(entries.size() - 1);
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets the instance of each row, deleted rows are null.
+	 */
+	private ArrayList<Instance> trainRows()
+	{
+		if(m_TrainRows == null) {
+			int n = 0;
+			for(Integer row : m_TrainRowIndex.values())
+				n = Math.max(n, row + 1);
+			m_TrainRows = new ArrayList<Instance>(n);
+			for(int i = 0; i < n; i++)
+				m_TrainRows.add(null);
+			for(Map.Entry<Instance, Integer> row : m_TrainRowIndex.entrySet())
+				m_TrainRows.set(row.getValue(), row.getKey());
+		}
+		return m_TrainRows;
+	}
+	
+	private Instance[] rootEntries()
+	{
+		Instance[] centers = new Instance[mTree.root.nrKeys];
+		for(int i = 0; i < centers.length; i++)
+			centers[i] = mTree.root.instances.get(i);
+		return centers;
+	}
+	
+	/**
+	 * Tells whether the clusters are not the ones before an update: the root or
+	 * one of its entries was replaced.
+	 */
+	private boolean rootChanged(Node root, Instance[] centers)
+	{
+		if(mTree.root != root || root.isLeaf || root.nrKeys != centers.length)
+			return true;
+		for(int i = 0; i < centers.length; i++)
+			if(root.instances.get(i) != centers[i])
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Adds a row of the tree to its cluster.
+	 */
+	private void assignRow(Instance inst, int row)
+	{
+		//a split may have added the leaf of the row
+		if(!m_LeafCluster.containsKey(m_LeafIndex.get(inst)))
+			indexLeafClusters();
+		
+		if(m_RowClusters.length <= row) {
+			int length = m_RowClusters.length;
+			m_RowClusters = Arrays.copyOf(m_RowClusters, Math.max(row + 1, 2 * length));
+			Arrays.fill(m_RowClusters, length, m_RowClusters.length, -1);
+		}
+		int cluster = clusterProcessedInstance(inst, true, true);
+		m_ClusterSizes[cluster]++;
+		m_RowClusters[row] = cluster;
+	}
+	
+	/**
+	 * Takes a row out of its cluster, the center of the cluster does not move.
+	 */
+	private void unassignRow(Instance inst, int row)
+	{
+		int cluster = m_RowClusters[row];
+		if(cluster < 0)
+			return;
+		
+		double error = squaredDistance(inst, mTree.root.instances.get(cluster));
+		if (!(m_DistanceFunction instanceof EuclideanDistance))
+			error = Math.sqrt(error);
+		m_squaredErrors[cluster] -= error;
+		m_ClusterSizes[cluster]--;
+		m_RowClusters[row] = -1;
+	}
+	
+	/**
+	 * Computes the clusters, their sizes and errors and the cluster of every
+	 * row again from the root entries.
+	 */
+	private void refreshClusters()
+	{
+		Node root = mTree.root;
+		indexLeafClusters();
+		if(!root.isLeaf)
+			m_NumClusters = root.nrKeys;
+		m_ClusterCentroids = new Instances(m_ClusterCentroids, root.nrKeys);
+		for(int i = 0; i < root.nrKeys; i++)
+			m_ClusterCentroids.add(root.instances.get(i));
+		m_ClusterSizes = new int[root.nrKeys];
+		m_squaredErrors = new double[Math.max(1, root.nrKeys)];
+		
+		ArrayList<Instance> rows = trainRows();
+		if(m_RowClusters == null || m_RowClusters.length < rows.size())
+			m_RowClusters = new int[rows.size()];
+		Arrays.fill(m_RowClusters, -1);
+		for(int row = 0; row < rows.size(); row++)
+			if(rows.get(row) != null && m_LeafIndex.containsKey(rows.get(row)))
+				assignRow(rows.get(row), row);
+	}
+
 	/**
 	 * Gets the root of the tree.
 	 * @return the root
@@ -0,0 +1,270 @@
+package weka.clusterers;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters collected by an MTree while it is built and queried: distance
+ * computations per phase, nodes visited and pruned by the queries, split
+ * decisions and their latency per split policy. The counters can be
+ * updated by many threads. Each update is also emitted as a JFR event when
+ * a flight recording is running.
+ */
+public class MTreeMetrics implements Serializable {
+
+	private static final long serialVersionUID = -5871264478392016625L;
+
+	/** descent of an insertion */
+	public static final int PHASE_INSERT = 0;
+	/** partitioning of the points by bulk loading */
+	public static final int PHASE_BULK_LOAD = 1;
+	/** split of a node, apart from the split policy clusterers */
+	public static final int PHASE_SPLIT = 2;
+	/** choice of the routing objects */
+	public static final int PHASE_CENTER = 3;
+	/** final assignment and squared errors */
+	public static final int PHASE_ASSIGNMENT = 4;
+	/** range queries */
+	public static final int PHASE_RANGE_QUERY = 5;
+	/** kNN queries */
+	public static final int PHASE_KNN = 6;
+
+	public static final String[] PHASE_NAMES = { "insert", "bulk load", "split",
+		"choose center", "assignment", "range query", "kNN" };
+
+	/** latency bucket i holds the durations in [2^i, 2^(i+1)) microseconds */
+	public static final int LATENCY_BUCKETS = 32;
+
+	protected final LongAdder[] m_Distances = newAdders(PHASE_NAMES.length);
+
+	/** per query phase: number of queries, nodes visited, entries pruned */
+	protected final LongAdder[] m_Queries = newAdders(PHASE_NAMES.length);
+	protected final LongAdder[] m_NodesVisited = newAdders(PHASE_NAMES.length);
+	protected final LongAdder[] m_Pruned = newAdders(PHASE_NAMES.length);
+	/** an AtomicLong rather than a LongAccumulator, whose function is not serializable */
+	protected final AtomicLong[] m_MaxNodesVisited = new AtomicLong[PHASE_NAMES.length];
+
+	/** per split policy: split evaluations, splits done, latency histogram */
+	protected final LongAdder[] m_SplitChecks;
+	protected final LongAdder[] m_Splits;
+	protected final LongAdder[][] m_SplitLatency;
+
+	/**
+	 * Creates empty counters.
+	 *
+	 * @param numSplitPolicies the number of split policies (largest id + 1)
+	 */
+	public MTreeMetrics(int numSplitPolicies) {
+		for (int i = 0; i < m_MaxNodesVisited.length; i++)
+			m_MaxNodesVisited[i] = new AtomicLong();
+		m_SplitChecks = newAdders(numSplitPolicies);
+		m_Splits = newAdders(numSplitPolicies);
+		m_SplitLatency = new LongAdder[numSplitPolicies][];
+		for (int i = 0; i < numSplitPolicies; i++)
+			m_SplitLatency[i] = newAdders(LATENCY_BUCKETS);
+	}
+
+	private static LongAdder[] newAdders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++)
+			adders[i] = new LongAdder();
+		return adders;
+	}
+
+	/**
+	 * Counts distance computations.
+	 *
+	 * @param phase one of the PHASE_ constants
+	 * @param count the number of distances computed
+	 */
+	public void distances(int phase, long count) {
+		m_Distances[phase].add(count);
+	}
+
+	/**
+	 * Records a finished query.
+	 *
+	 * @param phase PHASE_RANGE_QUERY or PHASE_KNN
+	 * @param distances the number of distances computed
+	 * @param nodesVisited the number of nodes whose entries were examined
+	 * @param pruned the number of entries skipped without computing their distance
+	 *        or whose subtree was not visited
+	 */
+	public void query(int phase, long distances, long nodesVisited, long pruned) {
+		m_Distances[phase].add(distances);
+		m_Queries[phase].increment();
+		m_NodesVisited[phase].add(nodesVisited);
+		m_Pruned[phase].add(pruned);
+		long max = m_MaxNodesVisited[phase].get();
+		while (nodesVisited > max && !m_MaxNodesVisited[phase].compareAndSet(max, nodesVisited))
+			max = m_MaxNodesVisited[phase].get();
+
+		MTreeQueryEvent event = new MTreeQueryEvent();
+		if (event.isEnabled()) {
+			event.phase = PHASE_NAMES[phase];
+			event.distances = distances;
+			event.nodesVisited = nodesVisited;
+			event.pruned = pruned;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Records the evaluation of a node by the split policy.
+	 *
+	 * @param policy the split policy id
+	 * @param nodeSize the number of entries of the node
+	 * @param clusters the number of nodes it was split into, 0 if not split
+	 * @param nanos the duration of the evaluation and split
+	 */
+	public void splitCheck(int policy, int nodeSize, int clusters, long nanos) {
+		m_SplitChecks[policy].increment();
+		if (clusters > 1)
+			m_Splits[policy].increment();
+
+		long micros = Math.max(nanos / 1000, 1);
+		int bucket = Math.min(63 - Long.numberOfLeadingZeros(micros), LATENCY_BUCKETS - 1);
+		m_SplitLatency[policy][bucket].increment();
+
+		MTreeSplitEvent event = new MTreeSplitEvent();
+		if (event.isEnabled()) {
+			event.policy = policy;
+			event.nodeSize = nodeSize;
+			event.clusters = clusters;
+			event.latency = nanos;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Takes a copy of the counters.
+	 *
+	 * @param depth the depth of the tree, 1 for a single leaf
+	 * @param fanouts number of internal nodes for each number of entries
+	 * @param leafSizes number of leaves for each number of entries
+	 * @return the snapshot
+	 */
+	public Snapshot snapshot(int depth, long[] fanouts, long[] leafSizes) {
+		Snapshot snapshot = new Snapshot();
+		int phases = PHASE_NAMES.length;
+		snapshot.distances = sums(m_Distances);
+		snapshot.queries = sums(m_Queries);
+		snapshot.nodesVisited = sums(m_NodesVisited);
+		snapshot.pruned = sums(m_Pruned);
+		snapshot.maxNodesVisited = new long[phases];
+		for (int i = 0; i < phases; i++)
+			snapshot.maxNodesVisited[i] = m_MaxNodesVisited[i].get();
+		snapshot.splitChecks = sums(m_SplitChecks);
+		snapshot.splits = sums(m_Splits);
+		snapshot.splitLatency = new long[m_SplitLatency.length][];
+		for (int i = 0; i < m_SplitLatency.length; i++)
+			snapshot.splitLatency[i] = sums(m_SplitLatency[i]);
+		snapshot.depth = depth;
+		snapshot.fanouts = fanouts;
+		snapshot.leafSizes = leafSizes;
+		return snapshot;
+	}
+
+	private static long[] sums(LongAdder[] adders) {
+		long[] sums = new long[adders.length];
+		for (int i = 0; i < adders.length; i++)
+			sums[i] = adders[i].sum();
+		return sums;
+	}
+
+	/**
+	 * The values of the counters at one moment, with the shape of the tree.
+	 */
+	public static class Snapshot implements Serializable {
+
+		private static final long serialVersionUID = 2087215348845113960L;
+
+		/** distance computations per phase */
+		public long[] distances;
+		/** queries, nodes visited, entries pruned and the largest number of
+		 *  nodes visited by one query, per query phase */
+		public long[] queries;
+		public long[] nodesVisited;
+		public long[] pruned;
+		public long[] maxNodesVisited;
+		/** split evaluations and splits per split policy */
+		public long[] splitChecks;
+		public long[] splits;
+		/** per split policy, number of evaluations in each latency bucket */
+		public long[][] splitLatency;
+		/** depth of the tree */
+		public int depth;
+		/** number of internal nodes and leaves for each number of entries */
+		public long[] fanouts;
+		public long[] leafSizes;
+
+		/**
+		 * @return the total number of distance computations
+		 */
+		public long totalDistances() {
+			long total = 0;
+			for (long d : distances)
+				total += d;
+			return total;
+		}
+
+		/**
+		 * Gets the smallest latency under which the given fraction of the
+		 * split evaluations of a policy finished, from the histogram.
+		 *
+		 * @param policy the split policy id
+		 * @param quantile the fraction, in [0, 1]
+		 * @return the upper bound of the bucket in microseconds, 0 if no
+		 *         evaluation was recorded
+		 */
+		public long splitLatencyQuantile(int policy, double quantile) {
+			long total = 0;
+			for (long c : splitLatency[policy])
+				total += c;
+			if (total == 0)
+				return 0;
+			long seen = 0;
+			for (int i = 0; i < splitLatency[policy].length; i++) {
+				seen += splitLatency[policy][i];
+				if (seen >= quantile * total)
+					return 1L << (i + 1);
+			}
+			return 1L << splitLatency[policy].length;
+		}
+
+		@Override
+		public String toString() {
+			StringBuffer text = new StringBuffer();
+			text.append("Distance computations:\n");
+			for (int i = 0; i < distances.length; i++)
+				text.append("  " + PHASE_NAMES[i] + ": " + distances[i] + "\n");
+			for (int i = 0; i < queries.length; i++) {
+				if (queries[i] == 0)
+					continue;
+				text.append(PHASE_NAMES[i] + " queries: " + queries[i]
+						+ ", nodes visited per query: " + (double) nodesVisited[i] / queries[i]
+						+ " (max " + maxNodesVisited[i] + ")"
+						+ ", pruned per query: " + (double) pruned[i] / queries[i] + "\n");
+			}
+			for (int i = 0; i < splitChecks.length; i++) {
+				if (splitChecks[i] == 0)
+					continue;
+				text.append("Split policy " + i + ": " + splitChecks[i] + " evaluations, "
+						+ splits[i] + " splits, median latency < " + splitLatencyQuantile(i, 0.5)
+						+ " us, p99 < " + splitLatencyQuantile(i, 0.99) + " us\n");
+			}
+			text.append("Depth: " + depth + "\n");
+			text.append("Fanout (entries: internal nodes):");
+			for (int i = 0; i < fanouts.length; i++)
+				if (fanouts[i] > 0)
+					text.append(" " + i + ":" + fanouts[i]);
+			text.append("\nLeaf size (entries: leaves):");
+			for (int i = 0; i < leafSizes.length; i++)
+				if (leafSizes[i] > 0)
+					text.append(" " + i + ":" + leafSizes[i]);
+			text.append("\n");
+			return text.toString();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package weka.clusterers;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event committed for every range or kNN query of an MTree that collects
+ * metrics.
+ */
+@Name("weka.clusterers.MTreeQuery")
+@Label("M-tree Query")
+@Category("M-tree")
+@Description("Cost of a range or kNN query")
+class MTreeQueryEvent extends jdk.jfr.Event {
+
+	@Label("Phase")
+	String phase;
+
+	@Label("Distance Computations")
+	long distances;
+
+	@Label("Nodes Visited")
+	long nodesVisited;
+
+	@Label("Entries Pruned")
+	long pruned;
+}
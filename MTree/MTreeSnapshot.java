@@ -0,0 +1,529 @@
+package weka.clusterers;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.zip.CRC32;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Binary snapshot of a built MTree. Instead of serializing the nodes,
+ * instances and boxed doubles one by one, the tree is flattened into a few
+ * arrays that are written and read in bulk.
+ *
+ * All values are little-endian. The file holds, in this order:
+ * <pre>
+ * header       "MTRE", version, header length, distance id, number of
+ *              attributes, nodes, entries, rows, training rows and cluster
+ *              errors (ints), the minkowski order (double), the minimum,
+ *              maximum and mean of each attribute, the cluster errors
+ *              (doubles), then the relation and attribute names (int length
+ *              and UTF-8 bytes), padded to a multiple of 8 bytes
+ * node table   for each node in breadth first order: is leaf, number of
+ *              entries, index of its first entry, row of its parent routing
+ *              object or -1 (ints)
+ * entries      the child node of each entry or -1 (ints, padded to 8 bytes),
+ *              its covering radius (doubles), its distance to the parent
+ *              routing object (doubles), its row (ints, padded to 8 bytes)
+ * coordinates  the values of each row, row after row (doubles)
+ * trailer      the CRC32 of everything before it (long)
+ * </pre>
+ * The entries of a node are consecutive and the children of a node come
+ * after it, so the root is node 0. The rows of the training data come first
+ * and keep their index in the training data.
+ */
+public class MTreeSnapshot {
+
+	/** the first bytes of a snapshot */
+	public static final byte[] MAGIC = { 'M', 'T', 'R', 'E' };
+
+	/** the version written by this class */
+	public static final int VERSION = 1;
+
+	/** size of the fixed part of the header */
+	static final int FIXED_HEADER_SIZE = 48;
+
+	/** size of a node in the node table */
+	static final int NODE_SIZE = 16;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** the header of the data */
+	public Instances header;
+
+	/** the MTree.DISTANCE_SELECTION id of the distance */
+	public int distance;
+
+	/** the order of the minkowski distance */
+	public double order;
+
+	/** minimum, maximum and mean of each attribute */
+	public double[] min, max, means;
+
+	/** the error of each cluster */
+	public double[] errors;
+
+	/** the tree */
+	public MTreeBean tree;
+
+	/** the rows of the snapshot, the training rows first */
+	public Instance[] rows;
+
+	/** number of training rows */
+	public int numTrainRows;
+
+	/**
+	 * The counts and section offsets of a snapshot file.
+	 */
+	static class Layout {
+		int headerLength;
+		int distance;
+		int numAttributes;
+		int numNodes;
+		int numEntries;
+		int numRows;
+		int numTrainRows;
+		int numErrors;
+		double order;
+
+		long nodesOffset() {
+			return headerLength;
+		}
+
+		long childrenOffset() {
+			return nodesOffset() + (long) NODE_SIZE * numNodes;
+		}
+
+		long radiiOffset() {
+			return childrenOffset() + pad(4L * numEntries);
+		}
+
+		long parentDistancesOffset() {
+			return radiiOffset() + 8L * numEntries;
+		}
+
+		long rowsOffset() {
+			return parentDistancesOffset() + 8L * numEntries;
+		}
+
+		long coordinatesOffset() {
+			return rowsOffset() + pad(4L * numEntries);
+		}
+
+		long trailerOffset() {
+			return coordinatesOffset() + 8L * numRows * numAttributes;
+		}
+
+		/**
+		 * Reads the fixed part of the header.
+		 *
+		 * @param buffer a little-endian buffer positioned at the start of the file
+		 * @return the layout
+		 * @throws IOException if the buffer doesn't hold a supported snapshot
+		 */
+		static Layout read(ByteBuffer buffer) throws IOException {
+			for (int i = 0; i < MAGIC.length; i++)
+				if (buffer.get() != MAGIC[i])
+					throw new IOException("Not an MTree snapshot");
+			int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported snapshot version: " + version);
+
+			Layout layout = new Layout();
+			layout.headerLength = buffer.getInt();
+			layout.distance = buffer.getInt();
+			layout.numAttributes = buffer.getInt();
+			layout.numNodes = buffer.getInt();
+			layout.numEntries = buffer.getInt();
+			layout.numRows = buffer.getInt();
+			layout.numTrainRows = buffer.getInt();
+			layout.numErrors = buffer.getInt();
+			layout.order = buffer.getDouble();
+			return layout;
+		}
+	}
+
+	static long pad(long length) {
+		return (length + 7) & ~7L;
+	}
+
+	/**
+	 * Writes a tree.
+	 *
+	 * @param file the file to write
+	 * @param snapshot the tree and the data it was built with, rows may be
+	 *        null or only hold the training rows, the other instances of the
+	 *        tree are added to it
+	 * @throws IOException if the file can not be written
+	 */
+	public static void write(File file, MTreeSnapshot snapshot) throws IOException {
+
+		Instances header = snapshot.header;
+		int numAttributes = header.numAttributes();
+		for (int i = 0; i < numAttributes; i++)
+			if (!header.attribute(i).isNumeric())
+				throw new IOException("Only numeric attributes can be stored: " + header.attribute(i).name());
+
+		//rows: the training rows first, then the other routing objects
+		ArrayList<Instance> rows = new ArrayList<Instance>();
+		IdentityHashMap<Instance, Integer> rowIds = new IdentityHashMap<Instance, Integer>();
+		if (snapshot.rows != null) {
+			for (Instance row : snapshot.rows) {
+				rowIds.put(row, rows.size());
+				rows.add(row);
+			}
+		}
+
+		//nodes in breadth first order
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		nodes.add(snapshot.tree.root);
+		int numEntries = 0;
+		for (int i = 0; i < nodes.size(); i++) {
+			Node node = nodes.get(i);
+			numEntries += node.nrKeys;
+			for (int j = 0; j < node.nrKeys; j++) {
+				rowId(node.instances.get(j), rows, rowIds);
+				if (!node.isLeaf)
+					nodes.add(node.routes.get(j));
+			}
+			if (node.parent != null)
+				rowId(node.parent, rows, rowIds);
+		}
+
+		byte[][] names = new byte[numAttributes + 1][];
+		names[0] = header.relationName().getBytes(StandardCharsets.UTF_8);
+		int namesLength = 4 + names[0].length;
+		for (int i = 0; i < numAttributes; i++) {
+			names[i + 1] = header.attribute(i).name().getBytes(StandardCharsets.UTF_8);
+			namesLength += 4 + names[i + 1].length;
+		}
+		double[] errors = snapshot.errors == null ? new double[0] : snapshot.errors;
+		long headerLength = pad(FIXED_HEADER_SIZE + 8L * (3 * numAttributes + errors.length) + namesLength);
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			Output out = new Output(channel);
+
+			out.bytes(MAGIC);
+			out.putInt(VERSION);
+			out.putInt((int) headerLength);
+			out.putInt(snapshot.distance);
+			out.putInt(numAttributes);
+			out.putInt(nodes.size());
+			out.putInt(numEntries);
+			out.putInt(rows.size());
+			out.putInt(snapshot.numTrainRows);
+			out.putInt(errors.length);
+			out.putDouble(snapshot.order);
+			out.doubles(snapshot.min, 0, numAttributes);
+			out.doubles(snapshot.max, 0, numAttributes);
+			out.doubles(snapshot.means, 0, numAttributes);
+			out.doubles(errors, 0, errors.length);
+			for (byte[] name : names) {
+				out.putInt(name.length);
+				out.bytes(name);
+			}
+			out.padding();
+
+			//node table, the children of the i-th node follow those of the previous nodes
+			int firstEntry = 0;
+			for (Node node : nodes) {
+				out.putInt(node.isLeaf ? 1 : 0);
+				out.putInt(node.nrKeys);
+				out.putInt(firstEntry);
+				out.putInt(node.parent == null ? -1 : rowIds.get(node.parent));
+				firstEntry += node.nrKeys;
+			}
+
+			int child = 1;
+			for (Node node : nodes)
+				for (int j = 0; j < node.nrKeys; j++)
+					out.putInt(node.isLeaf ? -1 : child++);
+			out.padding();
+			for (Node node : nodes)
+				for (int j = 0; j < node.nrKeys; j++)
+					out.putDouble(node.isLeaf ? 0 : node.radix.get(j));
+			for (Node node : nodes)
+				for (int j = 0; j < node.nrKeys; j++)
+					out.putDouble(j < node.parentDistances.size() ? node.parentDistances.get(j) : 0);
+			for (Node node : nodes)
+				for (int j = 0; j < node.nrKeys; j++)
+					out.putInt(rowIds.get(node.instances.get(j)));
+			out.padding();
+
+			for (Instance row : rows)
+				for (int j = 0; j < numAttributes; j++)
+					out.putDouble(row.value(j));
+
+			out.finish();
+		}
+	}
+
+	private static int rowId(Instance inst, ArrayList<Instance> rows, IdentityHashMap<Instance, Integer> rowIds) {
+		Integer id = rowIds.get(inst);
+		if (id == null) {
+			id = rows.size();
+			rowIds.put(inst, id);
+			rows.add(inst);
+		}
+		return id;
+	}
+
+	/**
+	 * Reads a tree.
+	 *
+	 * @param file the file written by write()
+	 * @return the snapshot
+	 * @throws IOException if the file can not be read, is not a snapshot or is corrupted
+	 */
+	public static MTreeSnapshot read(File file) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			Input in = new Input(channel);
+
+			in.require(FIXED_HEADER_SIZE);
+			Layout layout = Layout.read(in.buffer);
+			int numAttributes = layout.numAttributes;
+
+			MTreeSnapshot snapshot = new MTreeSnapshot();
+			snapshot.distance = layout.distance;
+			snapshot.order = layout.order;
+			snapshot.numTrainRows = layout.numTrainRows;
+			snapshot.min = in.doubles(numAttributes);
+			snapshot.max = in.doubles(numAttributes);
+			snapshot.means = in.doubles(numAttributes);
+			snapshot.errors = in.doubles(layout.numErrors);
+
+			String relation = in.string();
+			ArrayList<Attribute> attributes = new ArrayList<Attribute>(numAttributes);
+			for (int i = 0; i < numAttributes; i++)
+				attributes.add(new Attribute(in.string()));
+			snapshot.header = new Instances(relation, attributes, 0);
+			in.skipTo(layout.nodesOffset());
+
+			int numNodes = layout.numNodes;
+			int[] isLeaf = new int[numNodes];
+			int[] nrKeys = new int[numNodes];
+			int[] firstEntry = new int[numNodes];
+			int[] parentRow = new int[numNodes];
+			for (int i = 0; i < numNodes; i++) {
+				in.require(NODE_SIZE);
+				isLeaf[i] = in.buffer.getInt();
+				nrKeys[i] = in.buffer.getInt();
+				firstEntry[i] = in.buffer.getInt();
+				parentRow[i] = in.buffer.getInt();
+			}
+
+			int[] children = in.ints(layout.numEntries);
+			in.skipTo(layout.radiiOffset());
+			double[] radii = in.doubles(layout.numEntries);
+			double[] parentDistances = in.doubles(layout.numEntries);
+			int[] entryRows = in.ints(layout.numEntries);
+			in.skipTo(layout.coordinatesOffset());
+
+			Instance[] rows = new Instance[layout.numRows];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = new DenseInstance(1.0, in.doubles(numAttributes));
+				rows[i].setDataset(snapshot.header);
+			}
+			snapshot.rows = rows;
+
+			long checksum = in.checksum();
+			in.require(8);
+			if (in.buffer.getLong() != checksum)
+				throw new IOException("The snapshot is corrupted, its checksum doesn't match");
+
+			Node[] tree = new Node[numNodes];
+			for (int i = 0; i < numNodes; i++)
+				tree[i] = new Node();
+			for (int i = 0; i < numNodes; i++) {
+				Node node = tree[i];
+				node.isLeaf = isLeaf[i] != 0;
+				node.nrKeys = nrKeys[i];
+				node.parent = parentRow[i] < 0 ? null : rows[parentRow[i]];
+				for (int j = firstEntry[i]; j < firstEntry[i] + nrKeys[i]; j++) {
+					node.instances.add(rows[entryRows[j]]);
+					node.parentDistances.add(parentDistances[j]);
+					node.radix.add(radii[j]);
+					if (!node.isLeaf)
+						node.routes.add(tree[children[j]]);
+				}
+			}
+			snapshot.tree = new MTreeBean();
+			snapshot.tree.root = tree[0];
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Buffered little-endian output computing the checksum of what it writes.
+	 */
+	private static class Output {
+
+		private final FileChannel m_Channel;
+		private final ByteBuffer m_Buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		private final CRC32 m_Crc = new CRC32();
+		private long m_Written = 0;
+
+		Output(FileChannel channel) {
+			m_Channel = channel;
+		}
+
+		private void flush() throws IOException {
+			m_Crc.update(m_Buffer.array(), 0, m_Buffer.position());
+			m_Buffer.flip();
+			while (m_Buffer.hasRemaining())
+				m_Written += m_Channel.write(m_Buffer);
+			m_Buffer.clear();
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (m_Buffer.remaining() < bytes)
+				flush();
+		}
+
+		void putInt(int value) throws IOException {
+			ensure(4);
+			m_Buffer.putInt(value);
+		}
+
+		void putDouble(double value) throws IOException {
+			ensure(8);
+			m_Buffer.putDouble(value);
+		}
+
+		void bytes(byte[] values) throws IOException {
+			for (int i = 0; i < values.length; ) {
+				ensure(1);
+				int n = Math.min(values.length - i, m_Buffer.remaining());
+				m_Buffer.put(values, i, n);
+				i += n;
+			}
+		}
+
+		void doubles(double[] values, int offset, int length) throws IOException {
+			while (length > 0) {
+				ensure(8);
+				int n = Math.min(length, m_Buffer.remaining() / 8);
+				m_Buffer.asDoubleBuffer().put(values, offset, n);
+				m_Buffer.position(m_Buffer.position() + 8 * n);
+				offset += n;
+				length -= n;
+			}
+		}
+
+		/** pads the output to a multiple of 8 bytes */
+		void padding() throws IOException {
+			long position = m_Written + m_Buffer.position();
+			for (long i = position; i < pad(position); i++) {
+				ensure(1);
+				m_Buffer.put((byte) 0);
+			}
+		}
+
+		/** writes the checksum trailer and flushes */
+		void finish() throws IOException {
+			flush();
+			m_Buffer.putLong(m_Crc.getValue());
+			m_Buffer.flip();
+			while (m_Buffer.hasRemaining())
+				m_Channel.write(m_Buffer);
+		}
+	}
+
+	/**
+	 * Buffered little-endian input computing the checksum of what it reads.
+	 */
+	private static class Input {
+
+		private final FileChannel m_Channel;
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		private final CRC32 m_Crc = new CRC32();
+		/** bytes of the buffer already added to the checksum */
+		private int m_Checked = 0;
+		/** file position of the start of the buffer */
+		private long m_BufferStart = 0;
+
+		Input(FileChannel channel) {
+			m_Channel = channel;
+			buffer.limit(0);
+		}
+
+		/** makes sure the buffer holds the given number of bytes */
+		void require(int bytes) throws IOException {
+			if (buffer.remaining() >= bytes)
+				return;
+			m_Crc.update(buffer.array(), m_Checked, buffer.position() - m_Checked);
+			m_BufferStart += buffer.position();
+			buffer.compact();
+			while (buffer.position() < bytes)
+				if (m_Channel.read(buffer) < 0)
+					throw new EOFException("The snapshot is truncated");
+			buffer.flip();
+			m_Checked = 0;
+		}
+
+		/** skips the padding up to a position of the file */
+		void skipTo(long position) throws IOException {
+			long bytes = position - (m_BufferStart + buffer.position());
+			if (bytes < 0 || bytes > 7)
+				throw new IOException("The snapshot is corrupted");
+			require((int) bytes);
+			buffer.position(buffer.position() + (int) bytes);
+		}
+
+		double[] doubles(int length) throws IOException {
+			double[] values = new double[length];
+			for (int offset = 0; offset < length; ) {
+				require(8);
+				int n = Math.min(length - offset, buffer.remaining() / 8);
+				buffer.asDoubleBuffer().get(values, offset, n);
+				buffer.position(buffer.position() + 8 * n);
+				offset += n;
+			}
+			return values;
+		}
+
+		int[] ints(int length) throws IOException {
+			int[] values = new int[length];
+			for (int offset = 0; offset < length; ) {
+				require(4);
+				int n = Math.min(length - offset, buffer.remaining() / 4);
+				buffer.asIntBuffer().get(values, offset, n);
+				buffer.position(buffer.position() + 4 * n);
+				offset += n;
+			}
+			return values;
+		}
+
+		String string() throws IOException {
+			require(4);
+			byte[] bytes = new byte[buffer.getInt()];
+			for (int offset = 0; offset < bytes.length; ) {
+				require(1);
+				int n = Math.min(bytes.length - offset, buffer.remaining());
+				buffer.get(bytes, offset, n);
+				offset += n;
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/** @return the checksum of the bytes read so far */
+		long checksum() {
+			m_Crc.update(buffer.array(), m_Checked, buffer.position() - m_Checked);
+			m_Checked = buffer.position();
+			return m_Crc.getValue();
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package weka.clusterers;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event committed for every evaluation of a node by the split policy of
+ * an MTree that collects metrics.
+ */
+@Name("weka.clusterers.MTreeSplit")
+@Label("M-tree Split")
+@Category("M-tree")
+@Description("Evaluation of a node by the split policy and the resulting split")
+class MTreeSplitEvent extends jdk.jfr.Event {
+
+	@Label("Split Policy")
+	int policy;
+
+	@Label("Node Size")
+	int nodeSize;
+
+	@Label("Clusters")
+	int clusters;
+
+	@Label("Latency")
+	@Timespan(Timespan.NANOSECONDS)
+	long latency;
+}
@@ -0,0 +1,522 @@
+package weka.clusterers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Read-only M-tree answering queries directly from a memory mapped
+ * MTreeSnapshot file. No node or instance is created when the tree is
+ * opened, so it is ready at once, and the pages of the file are shared by
+ * all the processes mapping it.
+ *
+ * The distances are the same as the ones of the MTree the snapshot was
+ * saved from. Missing values of the queries are replaced by the means of
+ * the training data, like MTree.clusterInstance does. Queries may run
+ * concurrently.
+ */
+public class MappedMTree implements Closeable {
+
+	/** the file */
+	protected FileChannel m_Channel;
+
+	/** the counts and section offsets */
+	protected MTreeSnapshot.Layout m_Layout;
+
+	/** header, node table and entries */
+	protected MappedByteBuffer m_Index;
+
+	/** the coordinates, m_RowsPerChunk rows per buffer */
+	protected MappedByteBuffer[] m_Chunks;
+	protected int m_RowsPerChunk;
+
+	/** number of values of each row */
+	protected int m_NumAttributes;
+
+	/** the structure of the data */
+	protected Instances m_Header;
+
+	/** minimum and width of each attribute, used for normalization */
+	protected double[] m_Min, m_Width;
+
+	/** the values replacing missing values */
+	protected double[] m_Means;
+
+	/** the distance between normalized rows */
+	protected DistanceKernel m_Kernel;
+
+	/**
+	 * Maps a snapshot without verifying its checksum.
+	 *
+	 * @param file the snapshot written by MTree.saveSnapshot()
+	 * @throws IOException if the file can not be mapped or is not a snapshot
+	 */
+	public MappedMTree(File file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Maps a snapshot.
+	 *
+	 * @param file the snapshot written by MTree.saveSnapshot()
+	 * @param verifyChecksum whether to read the whole file once to check it
+	 * @throws IOException if the file can not be mapped, is not a snapshot or
+	 *         its checksum doesn't match
+	 */
+	public MappedMTree(File file, boolean verifyChecksum) throws IOException {
+		m_Channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			open(verifyChecksum);
+		} catch (IOException e) {
+			m_Channel.close();
+			throw e;
+		}
+	}
+
+	private void open(boolean verifyChecksum) throws IOException {
+		ByteBuffer fixed = ByteBuffer.allocate(MTreeSnapshot.FIXED_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while (fixed.hasRemaining())
+			if (m_Channel.read(fixed, fixed.position()) < 0)
+				throw new IOException("Not an MTree snapshot");
+		fixed.flip();
+		m_Layout = MTreeSnapshot.Layout.read(fixed);
+		m_NumAttributes = m_Layout.numAttributes;
+
+		if (m_Layout.trailerOffset() + 8 != m_Channel.size())
+			throw new IOException("The snapshot is truncated");
+		if (m_Layout.coordinatesOffset() > Integer.MAX_VALUE)
+			throw new IOException("The node table of the snapshot is too large to be mapped");
+		if (m_Layout.distance == MTree.FilteredDistance)
+			throw new IOException("Unsupported distance: " + m_Layout.distance);
+
+		m_Index = m_Channel.map(FileChannel.MapMode.READ_ONLY, 0, m_Layout.coordinatesOffset());
+		m_Index.order(ByteOrder.LITTLE_ENDIAN);
+
+		//rows never straddle two buffers
+		long rowBytes = 8L * Math.max(m_NumAttributes, 1);
+		m_RowsPerChunk = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+		int numChunks = (m_Layout.numRows + m_RowsPerChunk - 1) / m_RowsPerChunk;
+		m_Chunks = new MappedByteBuffer[numChunks];
+		for (int c = 0; c < numChunks; c++) {
+			long first = (long) c * m_RowsPerChunk;
+			long rows = Math.min(m_RowsPerChunk, m_Layout.numRows - first);
+			m_Chunks[c] = m_Channel.map(FileChannel.MapMode.READ_ONLY,
+					m_Layout.coordinatesOffset() + first * rowBytes, rows * rowBytes);
+			m_Chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		readHeader();
+		if (verifyChecksum)
+			verifyChecksum();
+	}
+
+	private void readHeader() {
+		int n = m_NumAttributes;
+		int position = MTreeSnapshot.FIXED_HEADER_SIZE;
+		double[] max = new double[n];
+		m_Min = new double[n];
+		m_Width = new double[n];
+		m_Means = new double[n];
+		for (int i = 0; i < n; i++)
+			m_Min[i] = m_Index.getDouble(position + 8 * i);
+		position += 8 * n;
+		for (int i = 0; i < n; i++) {
+			max[i] = m_Index.getDouble(position + 8 * i);
+			m_Width[i] = max[i] - m_Min[i];
+		}
+		position += 8 * n;
+		for (int i = 0; i < n; i++)
+			m_Means[i] = m_Index.getDouble(position + 8 * i);
+		position += 8 * n + 8 * m_Layout.numErrors;
+
+		String[] names = new String[n + 1];
+		for (int i = 0; i <= n; i++) {
+			byte[] bytes = new byte[m_Index.getInt(position)];
+			position += 4;
+			for (int j = 0; j < bytes.length; j++)
+				bytes[j] = m_Index.get(position + j);
+			position += bytes.length;
+			names[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(n);
+		for (int i = 1; i <= n; i++)
+			attributes.add(new Attribute(names[i]));
+		m_Header = new Instances(names[0], attributes, 0);
+
+		m_Kernel = DistanceKernel.forRows(m_Layout.distance, n, m_Layout.order);
+	}
+
+	private void verifyChecksum() throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(m_Index.duplicate());
+		for (MappedByteBuffer chunk : m_Chunks)
+			crc.update(chunk.duplicate());
+
+		ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		while (trailer.hasRemaining())
+			if (m_Channel.read(trailer, m_Layout.trailerOffset() + trailer.position()) < 0)
+				throw new IOException("The snapshot is truncated");
+		trailer.flip();
+		if (trailer.getLong() != crc.getValue())
+			throw new IOException("The snapshot is corrupted, its checksum doesn't match");
+	}
+
+	/**
+	 * Unmaps the file. The buffers are released by the garbage collector,
+	 * the tree must not be used any more.
+	 */
+	@Override
+	public void close() throws IOException {
+		m_Channel.close();
+	}
+
+	private boolean isLeaf(int node) {
+		return m_Index.getInt((int) m_Layout.nodesOffset() + MTreeSnapshot.NODE_SIZE * node) != 0;
+	}
+
+	private int nrKeys(int node) {
+		return m_Index.getInt((int) m_Layout.nodesOffset() + MTreeSnapshot.NODE_SIZE * node + 4);
+	}
+
+	private int firstEntry(int node) {
+		return m_Index.getInt((int) m_Layout.nodesOffset() + MTreeSnapshot.NODE_SIZE * node + 8);
+	}
+
+	private int parentRow(int node) {
+		return m_Index.getInt((int) m_Layout.nodesOffset() + MTreeSnapshot.NODE_SIZE * node + 12);
+	}
+
+	private int child(int entry) {
+		return m_Index.getInt((int) m_Layout.childrenOffset() + 4 * entry);
+	}
+
+	private double radius(int entry) {
+		return m_Index.getDouble((int) m_Layout.radiiOffset() + 8 * entry);
+	}
+
+	private double parentDistance(int entry) {
+		return m_Index.getDouble((int) m_Layout.parentDistancesOffset() + 8 * entry);
+	}
+
+	private int entryRow(int entry) {
+		return m_Index.getInt((int) m_Layout.rowsOffset() + 4 * entry);
+	}
+
+	/**
+	 * Reads the raw values of a row.
+	 */
+	private void readRow(int row, double[] dest) {
+		MappedByteBuffer chunk = m_Chunks[row / m_RowsPerChunk];
+		int offset = (row % m_RowsPerChunk) * 8 * m_NumAttributes;
+		for (int i = 0; i < m_NumAttributes; i++)
+			dest[i] = chunk.getDouble(offset + 8 * i);
+	}
+
+	/**
+	 * Normalizes values in place, the same way NormalizableDistance does.
+	 */
+	private void normalize(double[] values) {
+		for (int i = 0; i < m_NumAttributes; i++)
+			values[i] = m_Width[i] == 0 ? 0 : (values[i] - m_Min[i]) / m_Width[i];
+	}
+
+	/**
+	 * Gets the normalized values of a query, with the means for the missing
+	 * values.
+	 */
+	private double[] query(Instance inst) {
+		double[] q = new double[m_NumAttributes];
+		for (int i = 0; i < m_NumAttributes; i++)
+			q[i] = inst.isMissing(i) ? m_Means[i] : inst.value(i);
+		normalize(q);
+		return q;
+	}
+
+	/**
+	 * Distance between a normalized query and a row, or
+	 * Double.POSITIVE_INFINITY if it is larger than the cutoff.
+	 */
+	private double distance(double[] q, int row, double[] scratch, double cutoff) {
+		readRow(row, scratch);
+		normalize(scratch);
+		return m_Kernel.distance(q, 0, scratch, 0, cutoff);
+	}
+
+	/**
+	 * @return the structure of the data
+	 */
+	public Instances getHeader() {
+		return m_Header;
+	}
+
+	/**
+	 * @return the number of rows, training rows and routing objects
+	 */
+	public int numRows() {
+		return m_Layout.numRows;
+	}
+
+	/**
+	 * @return the number of training rows, the first rows of the snapshot
+	 */
+	public int numTrainRows() {
+		return m_Layout.numTrainRows;
+	}
+
+	/**
+	 * @return the number of clusters, the entries of the root
+	 */
+	public int numberOfClusters() {
+		return isLeaf(0) ? 1 : nrKeys(0);
+	}
+
+	/**
+	 * Gets a row of the snapshot.
+	 *
+	 * @param row the row id
+	 * @return a new instance holding its values
+	 */
+	public Instance instance(int row) {
+		double[] values = new double[m_NumAttributes];
+		readRow(row, values);
+		Instance inst = new DenseInstance(1.0, values);
+		inst.setDataset(m_Header);
+		return inst;
+	}
+
+	/**
+	 * Assigns an instance to the cluster of its closest root entry.
+	 *
+	 * @param instance the instance
+	 * @return the cluster number
+	 */
+	public int clusterInstance(Instance instance) {
+		if (isLeaf(0))
+			return 0;
+
+		double[] q = query(instance);
+		double[] scratch = new double[m_NumAttributes];
+		int first = firstEntry(0);
+		int best = 0;
+		double min = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < nrKeys(0); i++) {
+			double d = distance(q, entryRow(first + i), scratch, min);
+			if (d < min) {
+				min = d;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Finds all the rows within a given distance from a query.
+	 *
+	 * @param query the query instance
+	 * @param r the query radius
+	 * @return the row ids
+	 */
+	public int[] rangeQuery(Instance query, double r) {
+		double[] q = query(query);
+		ColumnarMTree.IntList result = new ColumnarMTree.IntList();
+		rangeQuery(0, q, r, -1, new double[m_NumAttributes], result);
+		return result.toArray();
+	}
+
+	private void rangeQuery(int node, double[] q, double r, double distanceToParent, double[] scratch,
+			ColumnarMTree.IntList result) {
+		int first = firstEntry(node);
+		boolean leaf = isLeaf(node);
+		for (int e = first; e < first + nrKeys(node); e++) {
+			double radius = leaf ? 0 : radius(e);
+			//|d(Q, parent) - d(entry, parent)| is a lower bound of d(Q, entry)
+			if (distanceToParent >= 0 && Math.abs(distanceToParent - parentDistance(e)) > r + radius)
+				continue;
+
+			int row = entryRow(e);
+			if (leaf) {
+				if (distance(q, row, scratch, r) <= r)
+					result.add(row);
+			} else {
+				double d = distance(q, row, scratch, Double.POSITIVE_INFINITY);
+				if (d <= r + radius) {
+					int child = child(e);
+					rangeQuery(child, q, r, parentRow(child) == row ? d : -1, scratch, result);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the k nearest rows of a query, visiting the nodes closest first.
+	 *
+	 * @param query the query instance
+	 * @param k the number of neighbours
+	 * @return the row ids and distances of the neighbours, closest first
+	 */
+	public KNNResult kNN(Instance query, int k) {
+		KNNResult result = new KNNResult(1, Math.max(k, 0));
+		if (k <= 0)
+			return result;
+		double[] q = query(query);
+		double[] scratch = new double[m_NumAttributes];
+
+		//neighbours as a max heap on the distance, nodes as a min heap on the lower bound
+		double[] heapDistances = new double[k];
+		int[] heapRows = new int[k];
+		int size = 0;
+		double[] nodeBounds = new double[16];
+		double[] nodeParentDistances = new double[16];
+		int[] nodes = new int[16];
+		int numNodes = 1;
+		nodes[0] = 0;
+		nodeParentDistances[0] = -1;
+		int distances = 0;
+
+		while (numNodes > 0) {
+			int node = nodes[0];
+			double bound = nodeBounds[0];
+			double distanceToParent = nodeParentDistances[0];
+			numNodes--;
+			nodes[0] = nodes[numNodes];
+			nodeBounds[0] = nodeBounds[numNodes];
+			nodeParentDistances[0] = nodeParentDistances[numNodes];
+			siftDownMin(nodeBounds, nodes, nodeParentDistances, 0, numNodes);
+
+			double kth = size < k ? Double.POSITIVE_INFINITY : heapDistances[0];
+			if (bound > kth)
+				break;
+
+			boolean leaf = isLeaf(node);
+			int first = firstEntry(node);
+			for (int e = first; e < first + nrKeys(node); e++) {
+				kth = size < k ? Double.POSITIVE_INFINITY : heapDistances[0];
+				double radius = leaf ? 0 : radius(e);
+				if (distanceToParent >= 0 && Math.abs(distanceToParent - parentDistance(e)) - radius > kth)
+					continue;
+
+				int row = entryRow(e);
+				distances++;
+				if (leaf) {
+					double d = distance(q, row, scratch, kth);
+					if (size < k) {
+						heapDistances[size] = d;
+						heapRows[size] = row;
+						siftUpMax(heapDistances, heapRows, size++);
+					} else if (d < heapDistances[0]) {
+						heapDistances[0] = d;
+						heapRows[0] = row;
+						siftDownMax(heapDistances, heapRows, 0, k);
+					}
+				} else {
+					double d = distance(q, row, scratch, kth + radius);
+					double dmin = Math.max(d - radius, 0);
+					if (dmin <= kth) {
+						if (numNodes == nodes.length) {
+							nodes = Arrays.copyOf(nodes, 2 * numNodes);
+							nodeBounds = Arrays.copyOf(nodeBounds, 2 * numNodes);
+							nodeParentDistances = Arrays.copyOf(nodeParentDistances, 2 * numNodes);
+						}
+						int child = child(e);
+						nodes[numNodes] = child;
+						nodeBounds[numNodes] = dmin;
+						nodeParentDistances[numNodes] = parentRow(child) == row ? d : -1;
+						siftUpMin(nodeBounds, nodes, nodeParentDistances, numNodes++);
+					}
+				}
+			}
+		}
+
+		//the heap sorted, closest first
+		for (int end = size - 1; end > 0; end--) {
+			swap(heapDistances, heapRows, 0, end);
+			siftDownMax(heapDistances, heapRows, 0, end);
+		}
+		for (int j = 0; j < size; j++) {
+			result.m_Rows[j] = heapRows[j];
+			result.m_Distances[j] = heapDistances[j];
+		}
+		result.m_DistanceEvaluations[0] = distances;
+		return result;
+	}
+
+	private static void swap(double[] values, int[] ids, int i, int j) {
+		double value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+	}
+
+	private static void siftUpMax(double[] heap, int[] rows, int i) {
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (heap[parent] >= heap[i])
+				return;
+			swap(heap, rows, i, parent);
+			i = parent;
+		}
+	}
+
+	private static void siftDownMax(double[] heap, int[] rows, int i, int size) {
+		while (true) {
+			int largest = i;
+			int left = 2 * i + 1;
+			if (left < size && heap[left] > heap[largest])
+				largest = left;
+			if (left + 1 < size && heap[left + 1] > heap[largest])
+				largest = left + 1;
+			if (largest == i)
+				return;
+			swap(heap, rows, i, largest);
+			i = largest;
+		}
+	}
+
+	private static void swap(double[] bounds, int[] nodes, double[] parentDistances, int i, int j) {
+		swap(bounds, nodes, i, j);
+		double d = parentDistances[i];
+		parentDistances[i] = parentDistances[j];
+		parentDistances[j] = d;
+	}
+
+	private static void siftUpMin(double[] bounds, int[] nodes, double[] parentDistances, int i) {
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (bounds[parent] <= bounds[i])
+				return;
+			swap(bounds, nodes, parentDistances, i, parent);
+			i = parent;
+		}
+	}
+
+	private static void siftDownMin(double[] bounds, int[] nodes, double[] parentDistances, int i, int size) {
+		while (true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			if (left < size && bounds[left] < bounds[smallest])
+				smallest = left;
+			if (left + 1 < size && bounds[left + 1] < bounds[smallest])
+				smallest = left + 1;
+			if (smallest == i)
+				return;
+			swap(bounds, nodes, parentDistances, i, smallest);
+			i = smallest;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package weka.clusterers;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+class Node implements Serializable {
+
+	/**
+	 * A Node represents a cluster
+	 */
+	private static final long serialVersionUID = 3838507051790773553L;
+	public int nrKeys = 0;
+	public boolean isLeaf = true;
+	public ArrayList <Double> radix; 
+	public ArrayList<Node> routes; 
+	public ArrayList<Instance> instances;
+	public Instance parent;
+	
+	/**
+	 * distance from each entry to the parent routing object,
+	 * computed when the entry is inserted or its node is split
+	 */
+	public ArrayList<Double> parentDistances;
+	
+	/**
+	 * The last "no split" decision computed for this node: its size and
+	 * covering radius at that moment. A size of 0 means that no decision
+	 * was cached.
+	 */
+	public int splitCheckSize = 0;
+	public double splitCheckRadius = 0;
+	
+	/**
+	 * largest distance from each entry to the other entries of the node,
+	 * kept only with the incremental center selection. The array grows with
+	 * the node, only its first eccentricityCount values are valid
+	 */
+	public double[] eccentricities;
+	public int eccentricityCount = 0;
+	
+	/**
+	 * count, linear sum and squared sum of the instances stored under the
+	 * node, null until they are needed
+	 */
+	public ClusterFeature feature;
+
+
+	public Node(int size, Instances train)
+	{
+		radix = new ArrayList<Double>(size);  
+		routes = new ArrayList<Node>(size);   //the children
+		instances = new ArrayList<Instance>(size); 
+		parentDistances = new ArrayList<Double>(size);
+		nrKeys = 0;
+		isLeaf = true;
+
+		for (int i = 0; i < size; i++) {
+			this.radix.add(0.0);
+			this.parentDistances.add(0.0);
+			this.routes.add(new Node());
+			Instance newInst = new DenseInstance(train.numAttributes());
+			newInst.setDataset(train);
+			this.instances.add(newInst);
+		}
+	}
+
+	public Node() {
+		radix = new ArrayList<Double>();  
+		routes = new ArrayList<Node>();   
+		instances = new ArrayList<Instance>();
+		parentDistances = new ArrayList<Double>();
+		nrKeys = 0;
+		isLeaf = true;
+	}
+
+}
@@ -0,0 +1,188 @@
+package weka.clusterers;
+
+import java.io.Serializable;
+
+import weka.core.Attribute;
+import weka.core.DistanceFunction;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.NormalizableDistance;
+
+/**
+ * Stores points as the rows of one contiguous array of doubles. Every point
+ * is identified by its row id and its values are normalized the same way
+ * the weka distance functions normalize them, so the distance between two
+ * rows can be computed directly on the stored values.
+ */
+public class PointStore implements Serializable {
+
+	private static final long serialVersionUID = 6120415342913512087L;
+
+	/** the values of the points, row after row */
+	protected double[] m_Values;
+
+	/** number of stored points */
+	protected int m_Size = 0;
+
+	/** number of values of each point */
+	protected int m_NumAttributes;
+
+	/** minimum of each attribute, used for normalization */
+	protected double[] m_Min;
+
+	/** 1 / width of each attribute, 0 for constant attributes */
+	protected double[] m_Scale;
+
+	/**
+	 * Creates an empty store.
+	 *
+	 * @param header the structure of the stored points, only numeric
+	 *        attributes are supported
+	 * @param ranges the attribute ranges used for normalization (as returned
+	 *        by NormalizableDistance.getRanges()), null to store raw values
+	 * @param capacity the initial number of rows
+	 * @throws ArithmeticException if the rows don't fit in a single array
+	 */
+	public PointStore(Instances header, double[][] ranges, int capacity) {
+
+		for (int i = 0; i < header.numAttributes(); i++) {
+			if (header.attribute(i).type() != Attribute.NUMERIC)
+				throw new IllegalArgumentException("Only numeric attributes can be stored: "
+						+ header.attribute(i).name());
+		}
+
+		m_NumAttributes = header.numAttributes();
+		m_Values = new double[Math.multiplyExact(Math.max(capacity, 1), m_NumAttributes)];
+		m_Min = new double[m_NumAttributes];
+		m_Scale = new double[m_NumAttributes];
+
+		for (int i = 0; i < m_NumAttributes; i++) {
+			if (ranges == null) {
+				m_Min[i] = 0;
+				m_Scale[i] = 1;
+			} else {
+				m_Min[i] = ranges[i][NormalizableDistance.R_MIN];
+				m_Scale[i] = ranges[i][NormalizableDistance.R_WIDTH] == 0 ? 0
+						: 1 / ranges[i][NormalizableDistance.R_WIDTH];
+			}
+		}
+	}
+
+	/**
+	 * Creates an empty store normalizing the points like the given distance.
+	 *
+	 * @param header the structure of the stored points
+	 * @param distanceFunction the distance the tree is built with
+	 * @param capacity the initial number of rows
+	 * @return the store
+	 */
+	public static PointStore forDistance(Instances header, DistanceFunction distanceFunction, int capacity) {
+		double[][] ranges = null;
+		if (distanceFunction instanceof NormalizableDistance
+				&& !((NormalizableDistance) distanceFunction).getDontNormalize()) {
+			try {
+				ranges = ((NormalizableDistance) distanceFunction).getRanges();
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Can not get the attribute ranges of the distance", e);
+			}
+		}
+
+		return new PointStore(header, ranges, capacity);
+	}
+
+	/**
+	 * Adds a point to the store.
+	 *
+	 * @param inst the point
+	 * @return the row id of the point
+	 * @throws ArithmeticException if the store can't grow any more
+	 */
+	public int add(Instance inst) {
+		ensureCapacity(m_Size + 1);
+		normalize(inst, m_Values, m_Size * m_NumAttributes);
+		return m_Size++;
+	}
+
+	/**
+	 * Writes the normalized values of an instance.
+	 *
+	 * @param inst the instance
+	 * @param dest the destination array
+	 * @param offset where the values are written in dest
+	 */
+	public void normalize(Instance inst, double[] dest, int offset) {
+		for (int i = 0; i < m_NumAttributes; i++)
+			dest[offset + i] = (inst.value(i) - m_Min[i]) * m_Scale[i];
+	}
+
+	/**
+	 * Returns the normalized values of an instance.
+	 *
+	 * @param inst the instance
+	 * @return a new array holding the values
+	 */
+	public double[] normalize(Instance inst) {
+		double[] row = new double[m_NumAttributes];
+		normalize(inst, row, 0);
+		return row;
+	}
+
+	/**
+	 * Grows the backing array so it holds the given number of rows. The
+	 * offsets of the stored rows then fit in an int as well.
+	 */
+	private void ensureCapacity(int rows) {
+		if (Math.multiplyExact(rows, m_NumAttributes) > m_Values.length) {
+			int maxRows = Integer.MAX_VALUE / m_NumAttributes;
+			int newRows = Math.max(rows, (int) Math.min(maxRows, 2L * (m_Values.length / m_NumAttributes)));
+			double[] values = new double[newRows * m_NumAttributes];
+			System.arraycopy(m_Values, 0, values, 0, m_Size * m_NumAttributes);
+			m_Values = values;
+		}
+	}
+
+	/**
+	 * Gets the backing array. It is replaced when the store grows, so it
+	 * should not be kept between insertions.
+	 *
+	 * @return the values of all points, row after row
+	 */
+	public double[] values() {
+		return m_Values;
+	}
+
+	/**
+	 * Gets the position of a row in the backing array.
+	 *
+	 * @param row the row id
+	 * @return the offset of the first value of the row
+	 */
+	public int offset(int row) {
+		return row * m_NumAttributes;
+	}
+
+	/**
+	 * Gets a normalized value of a point.
+	 *
+	 * @param row the row id
+	 * @param attribute the attribute index
+	 * @return the value
+	 */
+	public double value(int row, int attribute) {
+		return m_Values[row * m_NumAttributes + attribute];
+	}
+
+	/**
+	 * @return the number of stored points
+	 */
+	public int size() {
+		return m_Size;
+	}
+
+	/**
+	 * @return the number of values of each point
+	 */
+	public int numAttributes() {
+		return m_NumAttributes;
+	}
+}
@@ -0,0 +1,279 @@
+package weka.clusterers;
+
+import java.util.Random;
+
+/**
+ * Split policies working directly on the normalized rows of a node. They
+ * return the cluster of every row, numbered from 0 without empty clusters,
+ * so no Instances copy and no ClusterEvaluation pass is needed.
+ */
+public class SplitEngine {
+
+	/** canopies created before the densest ones are kept, per requested cluster */
+	private static final int CANOPY_OVERSAMPLING = 4;
+
+	private SplitEngine() {
+	}
+
+	/**
+	 * Lloyd's k-means started from k-means++ seeds. The centers are the means
+	 * of their rows whatever the distance is.
+	 *
+	 * @param points the rows to split
+	 * @param kernel the distance between rows
+	 * @param k the number of clusters
+	 * @param maxIterations the maximum number of Lloyd iterations
+	 * @param random the source of the seeds
+	 * @return the cluster of each row
+	 */
+	public static int[] kMeans(PointStore points, DistanceKernel kernel, int k, int maxIterations, Random random) {
+		int n = points.size();
+		int m = points.numAttributes();
+		double[] values = points.values();
+
+		double[] centers = new double[Math.min(k, n) * m];
+		k = seedKMeansPlusPlus(values, n, m, kernel, centers, random);
+
+		int[] assignments = new int[n];
+		for (int iteration = 0; iteration < maxIterations; iteration++) {
+			if (!assign(values, n, m, kernel, centers, k, assignments) && iteration > 0)
+				break;
+			updateMeans(values, n, m, assignments, centers, k);
+		}
+		return compact(assignments, k);
+	}
+
+	/**
+	 * Moves every center to the mean of its rows, an empty cluster keeps its
+	 * center.
+	 */
+	private static void updateMeans(double[] values, int n, int m, int[] assignments, double[] centers, int k) {
+		double[] sums = new double[k * m];
+		int[] counts = new int[k];
+		for (int i = 0; i < n; i++) {
+			int offset = assignments[i] * m;
+			for (int j = 0; j < m; j++)
+				sums[offset + j] += values[i * m + j];
+			counts[assignments[i]]++;
+		}
+		for (int c = 0; c < k; c++)
+			if (counts[c] > 0)
+				for (int j = 0; j < m; j++)
+					centers[c * m + j] = sums[c * m + j] / counts[c];
+	}
+
+	/**
+	 * Chooses the k-means++ seeds: the first one at random, each next one
+	 * with a probability proportional to its squared distance to the closest
+	 * seed.
+	 *
+	 * @return the number of seeds, smaller than the length of centers when
+	 *         the rows have fewer distinct values
+	 */
+	private static int seedKMeansPlusPlus(double[] values, int n, int m, DistanceKernel kernel,
+			double[] centers, Random random) {
+
+		int k = centers.length / m;
+		double[] weights = new double[n];
+		int seed = random.nextInt(n);
+		System.arraycopy(values, seed * m, centers, 0, m);
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			double d = kernel.distance(values, i * m, centers, 0);
+			weights[i] = d * d;
+			total += weights[i];
+		}
+
+		for (int c = 1; c < k; c++) {
+			if (total <= 0)
+				return c;
+
+			double target = random.nextDouble() * total;
+			seed = n - 1;
+			for (int i = 0; i < n; i++) {
+				target -= weights[i];
+				if (target < 0) {
+					seed = i;
+					break;
+				}
+			}
+			System.arraycopy(values, seed * m, centers, c * m, m);
+
+			total = 0;
+			for (int i = 0; i < n; i++) {
+				double d = kernel.distance(values, i * m, centers, c * m, Math.sqrt(weights[i]));
+				if (d * d < weights[i])
+					weights[i] = d * d;
+				total += weights[i];
+			}
+		}
+		return k;
+	}
+
+	/**
+	 * Assigns every row to its closest center.
+	 *
+	 * @return true if an assignment changed
+	 */
+	private static boolean assign(double[] values, int n, int m, DistanceKernel kernel, double[] centers,
+			int k, int[] assignments) {
+
+		boolean changed = false;
+		for (int i = 0; i < n; i++) {
+			int best = 0;
+			double min = kernel.distance(values, i * m, centers, 0);
+			for (int c = 1; c < k; c++) {
+				double d = kernel.distance(values, i * m, centers, c * m, min);
+				if (d < min) {
+					min = d;
+					best = c;
+				}
+			}
+			if (assignments[i] != best) {
+				assignments[i] = best;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Farthest first traversal: the first center is chosen at random, each
+	 * next one is the row farthest from the centers chosen so far. Rows go
+	 * to their closest center.
+	 *
+	 * @param points the rows to split
+	 * @param kernel the distance between rows
+	 * @param k the number of clusters
+	 * @param random the source of the first center
+	 * @return the cluster of each row
+	 */
+	public static int[] farthestFirst(PointStore points, DistanceKernel kernel, int k, Random random) {
+		int n = points.size();
+		int m = points.numAttributes();
+		double[] values = points.values();
+
+		int[] assignments = new int[n];
+		double[] minDistances = new double[n];
+		int center = random.nextInt(n);
+		for (int i = 0; i < n; i++)
+			minDistances[i] = kernel.distance(values, i * m, values, center * m);
+
+		int numCenters = 1;
+		for (; numCenters < k; numCenters++) {
+			center = 0;
+			for (int i = 1; i < n; i++)
+				if (minDistances[i] > minDistances[center])
+					center = i;
+			if (minDistances[center] == 0)
+				break;
+
+			for (int i = 0; i < n; i++) {
+				double d = kernel.distance(values, i * m, values, center * m, minDistances[i]);
+				if (d < minDistances[i]) {
+					minDistances[i] = d;
+					assignments[i] = numCenters;
+				}
+			}
+		}
+		return compact(assignments, numCenters);
+	}
+
+	/**
+	 * Canopy clustering: rows taken in random order become centers unless
+	 * they are within T2 of an earlier center. T2 is half the average
+	 * distance from the rows to their mean. When there are more than k
+	 * canopies, the k holding the most rows are kept. Rows go to the closest
+	 * kept canopy, then to the closest mean of these clusters.
+	 *
+	 * @param points the rows to split
+	 * @param kernel the distance between rows
+	 * @param k the maximum number of clusters
+	 * @param random the order the rows are visited in
+	 * @return the cluster of each row
+	 */
+	public static int[] canopy(PointStore points, DistanceKernel kernel, int k, Random random) {
+		int n = points.size();
+		int m = points.numAttributes();
+		double[] values = points.values();
+
+		double[] mean = new double[m];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < m; j++)
+				mean[j] += values[i * m + j] / n;
+		double t2 = 0;
+		for (int i = 0; i < n; i++)
+			t2 += kernel.distance(values, i * m, mean, 0) / n;
+		t2 /= 2;
+
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+
+		//the canopies are only looked for among the first rows when there are many
+		int maxCanopies = Math.max(k, 1) * CANOPY_OVERSAMPLING;
+		int[] canopies = new int[Math.min(n, maxCanopies)];
+		int[] sizes = new int[canopies.length];
+		boolean[] covered = new boolean[n];
+		int numCanopies = 0;
+		for (int o = 0; o < n && numCanopies < canopies.length; o++) {
+			int center = order[o];
+			if (covered[center])
+				continue;
+			for (int i = 0; i < n; i++) {
+				if (!covered[i] && kernel.distance(values, i * m, values, center * m, t2) <= t2) {
+					covered[i] = true;
+					sizes[numCanopies]++;
+				}
+			}
+			canopies[numCanopies++] = center;
+		}
+
+		//keep the largest canopies, selection sort as there are few of them
+		int kept = Math.min(k, numCanopies);
+		for (int c = 0; c < kept; c++) {
+			int largest = c;
+			for (int d = c + 1; d < numCanopies; d++)
+				if (sizes[d] > sizes[largest])
+					largest = d;
+			int swap = canopies[c];
+			canopies[c] = canopies[largest];
+			canopies[largest] = swap;
+			swap = sizes[c];
+			sizes[c] = sizes[largest];
+			sizes[largest] = swap;
+		}
+
+		//the canopies are centered on the mean of their rows before the final assignment
+		double[] centers = new double[kept * m];
+		for (int c = 0; c < kept; c++)
+			System.arraycopy(values, canopies[c] * m, centers, c * m, m);
+		int[] assignments = new int[n];
+		assign(values, n, m, kernel, centers, kept, assignments);
+		updateMeans(values, n, m, assignments, centers, kept);
+		assign(values, n, m, kernel, centers, kept, assignments);
+		return compact(assignments, kept);
+	}
+
+	/**
+	 * Numbers the clusters again so that none of them is empty.
+	 */
+	private static int[] compact(int[] assignments, int k) {
+		int[] ids = new int[k];
+		for (int i = 0; i < assignments.length; i++)
+			ids[assignments[i]] = 1;
+		int next = 0;
+		for (int c = 0; c < k; c++)
+			ids[c] = ids[c] > 0 ? next++ : -1;
+		if (next < k)
+			for (int i = 0; i < assignments.length; i++)
+				assignments[i] = ids[assignments[i]];
+		return assignments;
+	}
+}
@@ -0,0 +1,224 @@
+package weka.clusterers;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Row kernels using the vector API. They compute the distances lane by lane
+ * and add the lanes up at the end, so the results may differ from the scalar
+ * kernels in the last bits. The instance variants are inherited from the
+ * scalar kernels.
+ *
+ * This class needs JDK 16 or later and the jdk.incubator.vector module, so
+ * it is kept out of the MTree sources: compile it with them only when
+ * javac is given --add-modules jdk.incubator.vector. DistanceKernel.forRows()
+ * looks it up by name and falls back to the scalar kernels without it.
+ */
+public class VectorDistanceKernel {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	/** the cutoff is checked after this many attributes */
+	private static final int CHECK_STRIDE = 64;
+
+	private VectorDistanceKernel() {
+	}
+
+	/**
+	 * Gets a vectorized kernel working on normalized rows.
+	 *
+	 * @param type the kernel type
+	 * @param numAttributes the number of values of each row
+	 * @return the kernel, or null if the type is not vectorized or the rows
+	 *         are too short to benefit from it
+	 */
+	public static DistanceKernel forRows(int type, int numAttributes) {
+		if (numAttributes < 2 * SPECIES.length())
+			return null;
+
+		switch (type) {
+		case DistanceKernel.EUCLIDEAN:
+			return new Euclidean(numAttributes);
+		case DistanceKernel.SQUARED_EUCLIDEAN:
+			return new SquaredEuclidean(numAttributes);
+		case DistanceKernel.MANHATTAN:
+			return new Manhattan(numAttributes);
+		case DistanceKernel.CHEBYSHEV:
+			return new Chebyshev(numAttributes);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Sum of the squared differences, or Double.POSITIVE_INFINITY once it is
+	 * larger than the cutoff.
+	 */
+	static double squaredSum(double[] a, int aOffset, double[] b, int bOffset, int n, double cutoff) {
+		int bound = SPECIES.loopBound(n);
+		double sum = 0;
+		int i = 0;
+		while (i < bound) {
+			int end = Math.min(bound, i + CHECK_STRIDE);
+			DoubleVector acc = DoubleVector.zero(SPECIES);
+			for (; i < end; i += SPECIES.length()) {
+				DoubleVector diff = DoubleVector.fromArray(SPECIES, a, aOffset + i)
+						.sub(DoubleVector.fromArray(SPECIES, b, bOffset + i));
+				acc = acc.add(diff.mul(diff));
+			}
+			sum += acc.reduceLanes(VectorOperators.ADD);
+			if (sum > cutoff)
+				return Double.POSITIVE_INFINITY;
+		}
+		for (; i < n; i++) {
+			double diff = a[aOffset + i] - b[bOffset + i];
+			sum += diff * diff;
+		}
+		return sum > cutoff ? Double.POSITIVE_INFINITY : sum;
+	}
+
+	/**
+	 * Sum of the absolute differences, or Double.POSITIVE_INFINITY once it is
+	 * larger than the cutoff.
+	 */
+	static double absoluteSum(double[] a, int aOffset, double[] b, int bOffset, int n, double cutoff) {
+		int bound = SPECIES.loopBound(n);
+		double sum = 0;
+		int i = 0;
+		while (i < bound) {
+			int end = Math.min(bound, i + CHECK_STRIDE);
+			DoubleVector acc = DoubleVector.zero(SPECIES);
+			for (; i < end; i += SPECIES.length()) {
+				acc = acc.add(DoubleVector.fromArray(SPECIES, a, aOffset + i)
+						.sub(DoubleVector.fromArray(SPECIES, b, bOffset + i)).abs());
+			}
+			sum += acc.reduceLanes(VectorOperators.ADD);
+			if (sum > cutoff)
+				return Double.POSITIVE_INFINITY;
+		}
+		for (; i < n; i++)
+			sum += Math.abs(a[aOffset + i] - b[bOffset + i]);
+		return sum > cutoff ? Double.POSITIVE_INFINITY : sum;
+	}
+
+	/**
+	 * Largest absolute difference, or Double.POSITIVE_INFINITY once it is
+	 * larger than the cutoff.
+	 */
+	static double absoluteMax(double[] a, int aOffset, double[] b, int bOffset, int n, double cutoff) {
+		int bound = SPECIES.loopBound(n);
+		double max = 0;
+		int i = 0;
+		while (i < bound) {
+			int end = Math.min(bound, i + CHECK_STRIDE);
+			DoubleVector acc = DoubleVector.zero(SPECIES);
+			for (; i < end; i += SPECIES.length()) {
+				acc = acc.max(DoubleVector.fromArray(SPECIES, a, aOffset + i)
+						.sub(DoubleVector.fromArray(SPECIES, b, bOffset + i)).abs());
+			}
+			max = Math.max(max, acc.reduceLanes(VectorOperators.MAX));
+			if (max > cutoff)
+				return Double.POSITIVE_INFINITY;
+		}
+		for (; i < n; i++)
+			max = Math.max(max, Math.abs(a[aOffset + i] - b[bOffset + i]));
+		return max > cutoff ? Double.POSITIVE_INFINITY : max;
+	}
+
+	public static class SquaredEuclidean extends DistanceKernel.SquaredEuclidean {
+
+		private static final long serialVersionUID = -1180926375432468311L;
+
+		public SquaredEuclidean(int numAttributes) {
+			super(numAttributes, null, null);
+		}
+
+		public double distance(double[] a, int aOffset, double[] b, int bOffset, double cutoff) {
+			return squaredSum(a, aOffset, b, bOffset, m_NumAttributes, cutoff);
+		}
+
+		public void distances(double[] q, int qOffset, double[] block, int blockOffset, int count, double[] dest) {
+			for (int i = 0; i < count; i++)
+				dest[i] = squaredSum(q, qOffset, block, blockOffset + i * m_NumAttributes, m_NumAttributes,
+						Double.POSITIVE_INFINITY);
+		}
+
+		protected Object writeReplace() {
+			return DistanceKernel.scalarRows(type(), m_NumAttributes, 2);
+		}
+	}
+
+	public static class Euclidean extends DistanceKernel.Euclidean {
+
+		private static final long serialVersionUID = 5315707296645335046L;
+
+		public Euclidean(int numAttributes) {
+			super(numAttributes, null, null);
+		}
+
+		public DistanceKernel squared() {
+			return new VectorDistanceKernel.SquaredEuclidean(m_NumAttributes);
+		}
+
+		public double distance(double[] a, int aOffset, double[] b, int bOffset, double cutoff) {
+			return Math.sqrt(squaredSum(a, aOffset, b, bOffset, m_NumAttributes, cutoff * cutoff * CUTOFF_SLACK));
+		}
+
+		public void distances(double[] q, int qOffset, double[] block, int blockOffset, int count, double[] dest) {
+			for (int i = 0; i < count; i++)
+				dest[i] = Math.sqrt(squaredSum(q, qOffset, block, blockOffset + i * m_NumAttributes,
+						m_NumAttributes, Double.POSITIVE_INFINITY));
+		}
+
+		protected Object writeReplace() {
+			return DistanceKernel.scalarRows(type(), m_NumAttributes, 2);
+		}
+	}
+
+	public static class Manhattan extends DistanceKernel.Manhattan {
+
+		private static final long serialVersionUID = -7619449436270312478L;
+
+		public Manhattan(int numAttributes) {
+			super(numAttributes, null, null);
+		}
+
+		public double distance(double[] a, int aOffset, double[] b, int bOffset, double cutoff) {
+			return absoluteSum(a, aOffset, b, bOffset, m_NumAttributes, cutoff);
+		}
+
+		public void distances(double[] q, int qOffset, double[] block, int blockOffset, int count, double[] dest) {
+			for (int i = 0; i < count; i++)
+				dest[i] = absoluteSum(q, qOffset, block, blockOffset + i * m_NumAttributes, m_NumAttributes,
+						Double.POSITIVE_INFINITY);
+		}
+
+		protected Object writeReplace() {
+			return DistanceKernel.scalarRows(type(), m_NumAttributes, 1);
+		}
+	}
+
+	public static class Chebyshev extends DistanceKernel.Chebyshev {
+
+		private static final long serialVersionUID = 2471360920581733594L;
+
+		public Chebyshev(int numAttributes) {
+			super(numAttributes, null, null);
+		}
+
+		public double distance(double[] a, int aOffset, double[] b, int bOffset, double cutoff) {
+			return absoluteMax(a, aOffset, b, bOffset, m_NumAttributes, cutoff);
+		}
+
+		public void distances(double[] q, int qOffset, double[] block, int blockOffset, int count, double[] dest) {
+			for (int i = 0; i < count; i++)
+				dest[i] = absoluteMax(q, qOffset, block, blockOffset + i * m_NumAttributes, m_NumAttributes,
+						Double.POSITIVE_INFINITY);
+		}
+
+		protected Object writeReplace() {
+			return DistanceKernel.scalarRows(type(), m_NumAttributes, 1);
+		}
+	}
+}
@@ -105,6 +105,15 @@ NumberOfClustersRequestable
    * maximum number of clusters to generate.
    */
   protected int m_NumClusters = 12;
+  
+  /** number of seeds run in parallel */
+  protected int m_executionSlots = 1;
+
+  /** For parallel execution mode */
+  protected transient ExecutorService m_executorPool;
+
+  /** pool of the caller the seeds run in, instead of a pool of their own */
+  protected transient ExecutorService m_sharedExecutorPool;
 
   /**
    * the default constructor.
@@ -178,170 +187,59 @@ NumberOfClustersRequestable
    * @throws Exception if the clusterer has not been generated successfully
    */
   @Override
-  public void buildClusterer(Instances data2) throws Exception
+  public void buildClusterer(Instances data) throws Exception
   {
-	  	Instances data = new Instances(data2);
+	  	//the runs only read the data, it is not copied
 	  	
-		CQM cqm = new CQM();
-		int[] assigments = null;
-		Instance centroid = null;	
-		Instances centroids = null;
 		int[] voting;
 		String[] seeds = new String[10];
-		double[][] metrics = new double[8][m_NumClusters];		
 		
 		for (int i = 0; i < seeds.length; i++)
 		{
 			seeds[i] = "";
 		}		
 		
-		for (int seed = 1; seed <= m_Seed; seed++)
-		{	
-			voting = new int[m_NumClusters];
-			SimpleKMeans simpleKMeans = new SimpleKMeans();
-		  	
-			simpleKMeans.setNumClusters(1);
-			simpleKMeans.setPreserveInstancesOrder(true);	
-			simpleKMeans.setSeed(seed);		
-			simpleKMeans.buildClusterer(data);
-			centroid = simpleKMeans.getClusterCentroids().instance(0);			
-			
-			for (int numClust = 2; numClust <= m_NumClusters; numClust++)
+		if (m_executionSlots > 1 && m_Seed > 1)
+		{
+			//a pool given by the caller is used as it is and stays open
+			boolean ownPool = m_sharedExecutorPool == null;
+			if (ownPool)
+				startExecutorPool();
+			else
+				m_executorPool = m_sharedExecutorPool;
+			try
 			{
-				int nC2 = numClust;
-				SimpleKMeans debg = new SimpleKMeans();
-				debg.setNumClusters(nC2);
-				
-				debg.setPreserveInstancesOrder(true);	
-				debg.setSeed(seed);		
-				debg.buildClusterer(data);
-				
-				assigments = debg.getAssignments();
-				centroids = debg.getClusterCentroids();
-				//numClust = simpleKMeans.getNumClusters();
-				//System.out.println(numClust);
-				
-				//System.out.println(debg.getNumClusters() + " debg.getNumClusters");
-				metrics[0][numClust - 2] = cqm.getDaviesBouldinIndex(centroids, debg.numberOfClusters(), data, assigments);
-				//System.out.println("mai traieste... 0");
-				metrics[1][numClust - 2] = cqm.getDunnIndex(centroids, debg.numberOfClusters(), data, assigments); //too slow for bigdata
-							
-				metrics[2][numClust - 2] = cqm.getXiBeniIndex(centroids, debg.numberOfClusters(), data, assigments);
-				//System.out.println("mai traieste... 2");			
-				metrics[3][numClust - 2] = cqm.getBanfeldRafteryIndex(centroids, debg.numberOfClusters(), data, assigments);
-				//System.out.println("mai traieste... 3");
-				metrics[4][numClust - 2] = cqm.getMcClainRaoIndex(debg.numberOfClusters(), data, assigments); //too slow for bigdata
-							
-				metrics[5][numClust - 2] = cqm.getRayTuriIndex(centroids, debg.numberOfClusters(), data, assigments);
-				//System.out.println("mai traieste... 5");
-				metrics[6][numClust - 2] = cqm.getCalinskiHarabaszIndex(centroid, centroids, debg.numberOfClusters(), data, assigments);
-				//System.out.println("mai traieste... 6");
-				metrics[7][numClust - 2] = cqm.getPBMindex(centroid, centroids, debg.numberOfClusters(), data, assigments);
-				//System.out.println("mai traieste... 7");
-				
-				if (numClust == 2)
+				List<Future<String>> results = new ArrayList<Future<String>>();
+				for (int seed = 1; seed <= m_Seed; seed++)
 				{
-					metrics[0][m_NumClusters - 1] = metrics[0][0];
-					metrics[1][m_NumClusters - 1] = metrics[1][0];
-					metrics[2][m_NumClusters - 1] = metrics[2][0];
-					metrics[3][m_NumClusters - 1] = metrics[3][0];
-					metrics[4][m_NumClusters - 1] = metrics[4][0];
-					metrics[5][m_NumClusters - 1] = metrics[5][0];
-					metrics[6][m_NumClusters - 1] = metrics[6][0];
-					metrics[7][m_NumClusters - 1] = metrics[7][0];
+					final int s = seed;
+					final Instances d = data;
+					results.add(m_executorPool.submit(new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							return voteSeed(d, s);
+						}
+					}));
 				}
-				else
+				//collected in seed order so the vote doesn't depend on the scheduling
+				for (int seed = 1; seed <= m_Seed; seed++)
 				{
-					//DB min
-					if (metrics[0][m_NumClusters - 1] > metrics[0][numClust - 2])
-					{
-						metrics[0][m_NumClusters - 1] = metrics[0][numClust - 2];
-					}
-					
-					//Dunn max
-					if (metrics[1][m_NumClusters - 1] < metrics[1][numClust - 2])
-					{
-						metrics[1][m_NumClusters - 1] = metrics[1][numClust - 2];
-					}
-					
-					//XB min
-					if (metrics[2][m_NumClusters - 1] > metrics[2][numClust - 2])
-					{
-						metrics[2][m_NumClusters - 1] = metrics[2][numClust - 2];
-					}
-					
-					//BR min
-					if (metrics[3][m_NumClusters - 1] > metrics[3][numClust - 2])
-					{
-						metrics[3][m_NumClusters - 1] = metrics[3][numClust - 2];
-					}
-					
-					//MR min
-					if (metrics[4][m_NumClusters - 1] > metrics[4][numClust - 2])
-					{
-						metrics[4][m_NumClusters - 1] = metrics[4][numClust - 2];
-					}
-					
-					//RT min
-					if (metrics[5][m_NumClusters - 1] > metrics[5][numClust - 2])
-					{
-						metrics[5][m_NumClusters - 1] = metrics[5][numClust - 2];
-					}
-					
-					//CH max
-					if (metrics[6][m_NumClusters - 1] < metrics[6][numClust - 2])
-					{
-						metrics[6][m_NumClusters - 1] = metrics[6][numClust - 2];
-					}
-					
-					//PBM min
-					if (metrics[7][m_NumClusters - 1] > metrics[7][numClust - 2])
-					{
-						metrics[7][m_NumClusters - 1] = metrics[7][numClust - 2];
-					}
+					seeds[seed - 1] = results.get(seed - 1).get();
 				}
-				debg = null;
 			}
-			
-			//System.out.println("mai traieste... j");
-			
-			for (int i = 0; i < 8; i++)
+			finally
 			{
-				for (int j = 0; j < m_NumClusters - 1; j++)
-				{
-					
-					// too slow for bigdata
-					/*
-					if(i == 1 && i == 4)
-					{
-						continue;
-					}*/
-					
-					if (metrics[i][j] == metrics[i][m_NumClusters - 1])
-					{
-						voting[j]++;
-					}
-				}
+				if (ownPool)
+					m_executorPool.shutdown();
+				m_executorPool = null;
 			}
-			
-			int max = 0;
-			
-			for (int i = 0; i < m_NumClusters - 1; i++)
+		}
+		else
+		{
+			for (int seed = 1; seed <= m_Seed; seed++)
 			{
-				if (max < voting[i])
-				{
-					max = voting[i];
-				}
+				seeds[seed - 1] = voteSeed(data, seed);
 			}
-			
-			for (int i = 0; i < m_NumClusters - 1; i++)
-			{
-				if (max == voting[i])
-				{
-					seeds[seed - 1] += i+2;
-				}
-			}			
-			simpleKMeans = null;
 		}
 		
 		//System.out.println("mai traieste... ");
@@ -397,6 +295,172 @@ NumberOfClustersRequestable
 
  
 
+  /**
+   * Runs SimpleKMeans with one seed for every number of clusters and votes
+   * with each quality metric for the best one.
+   * 
+   * @param data the instances to cluster, only read
+   * @param seed the seed of the SimpleKMeans runs
+   * @return the numbers of clusters that got the most votes, concatenated
+   * @throws Exception if a SimpleKMeans run fails
+   */
+  private String voteSeed(Instances data, int seed) throws Exception
+  {
+		CQM cqm = new CQM();
+		int[] assigments = null;
+		Instance centroid = null;	
+		Instances centroids = null;
+		int[] voting = new int[m_NumClusters];
+		double[][] metrics = new double[8][m_NumClusters];		
+		String votes = "";
+		
+		SimpleKMeans simpleKMeans = new SimpleKMeans();
+	  	
+		simpleKMeans.setNumClusters(1);
+		simpleKMeans.setPreserveInstancesOrder(true);	
+		simpleKMeans.setSeed(seed);		
+		simpleKMeans.buildClusterer(data);
+		centroid = simpleKMeans.getClusterCentroids().instance(0);			
+		
+		for (int numClust = 2; numClust <= m_NumClusters; numClust++)
+		{
+			int nC2 = numClust;
+			SimpleKMeans debg = new SimpleKMeans();
+			debg.setNumClusters(nC2);
+			
+			debg.setPreserveInstancesOrder(true);	
+			debg.setSeed(seed);		
+			debg.buildClusterer(data);
+			
+			assigments = debg.getAssignments();
+			centroids = debg.getClusterCentroids();
+			//numClust = simpleKMeans.getNumClusters();
+			//System.out.println(numClust);
+			
+			//System.out.println(debg.getNumClusters() + " debg.getNumClusters");
+			metrics[0][numClust - 2] = cqm.getDaviesBouldinIndex(centroids, debg.numberOfClusters(), data, assigments);
+			//System.out.println("mai traieste... 0");
+			metrics[1][numClust - 2] = cqm.getDunnIndex(centroids, debg.numberOfClusters(), data, assigments); //too slow for bigdata
+						
+			metrics[2][numClust - 2] = cqm.getXiBeniIndex(centroids, debg.numberOfClusters(), data, assigments);
+			//System.out.println("mai traieste... 2");			
+			metrics[3][numClust - 2] = cqm.getBanfeldRafteryIndex(centroids, debg.numberOfClusters(), data, assigments);
+			//System.out.println("mai traieste... 3");
+			metrics[4][numClust - 2] = cqm.getMcClainRaoIndex(debg.numberOfClusters(), data, assigments); //too slow for bigdata
+						
+			metrics[5][numClust - 2] = cqm.getRayTuriIndex(centroids, debg.numberOfClusters(), data, assigments);
+			//System.out.println("mai traieste... 5");
+			metrics[6][numClust - 2] = cqm.getCalinskiHarabaszIndex(centroid, centroids, debg.numberOfClusters(), data, assigments);
+			//System.out.println("mai traieste... 6");
+			metrics[7][numClust - 2] = cqm.getPBMindex(centroid, centroids, debg.numberOfClusters(), data, assigments);
+			//System.out.println("mai traieste... 7");
+			
+			if (numClust == 2)
+			{
+				metrics[0][m_NumClusters - 1] = metrics[0][0];
+				metrics[1][m_NumClusters - 1] = metrics[1][0];
+				metrics[2][m_NumClusters - 1] = metrics[2][0];
+				metrics[3][m_NumClusters - 1] = metrics[3][0];
+				metrics[4][m_NumClusters - 1] = metrics[4][0];
+				metrics[5][m_NumClusters - 1] = metrics[5][0];
+				metrics[6][m_NumClusters - 1] = metrics[6][0];
+				metrics[7][m_NumClusters - 1] = metrics[7][0];
+			}
+			else
+			{
+				//DB min
+				if (metrics[0][m_NumClusters - 1] > metrics[0][numClust - 2])
+				{
+					metrics[0][m_NumClusters - 1] = metrics[0][numClust - 2];
+				}
+				
+				//Dunn max
+				if (metrics[1][m_NumClusters - 1] < metrics[1][numClust - 2])
+				{
+					metrics[1][m_NumClusters - 1] = metrics[1][numClust - 2];
+				}
+				
+				//XB min
+				if (metrics[2][m_NumClusters - 1] > metrics[2][numClust - 2])
+				{
+					metrics[2][m_NumClusters - 1] = metrics[2][numClust - 2];
+				}
+				
+				//BR min
+				if (metrics[3][m_NumClusters - 1] > metrics[3][numClust - 2])
+				{
+					metrics[3][m_NumClusters - 1] = metrics[3][numClust - 2];
+				}
+				
+				//MR min
+				if (metrics[4][m_NumClusters - 1] > metrics[4][numClust - 2])
+				{
+					metrics[4][m_NumClusters - 1] = metrics[4][numClust - 2];
+				}
+				
+				//RT min
+				if (metrics[5][m_NumClusters - 1] > metrics[5][numClust - 2])
+				{
+					metrics[5][m_NumClusters - 1] = metrics[5][numClust - 2];
+				}
+				
+				//CH max
+				if (metrics[6][m_NumClusters - 1] < metrics[6][numClust - 2])
+				{
+					metrics[6][m_NumClusters - 1] = metrics[6][numClust - 2];
+				}
+				
+				//PBM min
+				if (metrics[7][m_NumClusters - 1] > metrics[7][numClust - 2])
+				{
+					metrics[7][m_NumClusters - 1] = metrics[7][numClust - 2];
+				}
+			}
+			debg = null;
+		}
+		
+		//System.out.println("mai traieste... j");
+		
+		for (int i = 0; i < 8; i++)
+		{
+			for (int j = 0; j < m_NumClusters - 1; j++)
+			{
+				
+				// too slow for bigdata
+				/*
+				if(i == 1 && i == 4)
+				{
+					continue;
+				}*/
+				
+				if (metrics[i][j] == metrics[i][m_NumClusters - 1])
+				{
+					voting[j]++;
+				}
+			}
+		}
+		
+		int max = 0;
+		
+		for (int i = 0; i < m_NumClusters - 1; i++)
+		{
+			if (max < voting[i])
+			{
+				max = voting[i];
+			}
+		}
+		
+		for (int i = 0; i < m_NumClusters - 1; i++)
+		{
+			if (max == voting[i])
+			{
+				votes += i+2;
+			}
+		}
+		
+		return votes;
+  }
+
   /**
    * Returns an enumeration describing the available options.
    * 
@@ -532,6 +596,49 @@ NumberOfClustersRequestable
     return m_NumClusters;
   }
   
+  /**
+   * Start the pool of execution threads
+   */
+  protected void startExecutorPool() {
+    if (m_executorPool != null) {
+      m_executorPool.shutdownNow();
+    }
+
+    m_executorPool = Executors.newFixedThreadPool(m_executionSlots);
+  }
+  
+  /**
+   * Sets the number of seeds run in parallel.
+   * 
+   * @param slots the number of execution slots
+   */
+  public void setNumExecutionSlots(int slots)
+  {
+    m_executionSlots = slots;
+  }
+  
+  /**
+   * Sets a pool to run the seeds in, so a caller building many VoteK doesn't
+   * start a pool for each of them. The pool is not shut down. The seeds must
+   * not be waited for from a thread of that pool.
+   * 
+   * @param pool the pool, null to start one at each build
+   */
+  public void setExecutorPool(ExecutorService pool)
+  {
+    m_sharedExecutorPool = pool;
+  }
+  
+  /**
+   * Gets the number of seeds run in parallel.
+   * 
+   * @return the number of execution slots
+   */
+  public int getNumExecutionSlots()
+  {
+    return m_executionSlots;
+  }
+  
   public int getPrediction()
   {
 	  //System.out.println(m_predictedNrClust);